@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+import javax.net.ssl.HttpsURLConnection;
+
+import net.wasdev.gameon.security.TheNotVerySensibleHostnameVerifier;
+
+/**
+ * What lies beyond each of the room's doors, as the map service sees it.
+ *
+ * Once the room knows its site id (from registering), the site is fetched from the map
+ * in the background, and fetched again every so often using If-None-Match, so an unchanged
+ * site costs the map a 304. Readers always get whatever was last fetched straight away,
+ * even while a refresh is in flight, and never wait on the map. Until the first fetch
+ * succeeds the exits are unknown, and the room falls back to its own doors. A site with no
+ * exits is known to have none.
+ *
+ * A failed fetch is retried after {@link #FIRST_RETRY_MILLIS}, doubling with each failure
+ * up to the refresh interval, so a map that is down isn't asked again on every read.
+ */
+public class ExitCache {
+
+    /** How long after a failed fetch the next is made, doubling with each failure in a row. */
+    static final long FIRST_RETRY_MILLIS = 1000;
+
+    /**
+     * A way out of the room.
+     */
+    public static class Exit {
+        private final String direction;
+        private final String fullName;
+        private final String door;
+
+        Exit(String direction, String fullName, String door) {
+            this.direction = direction;
+            this.fullName = fullName;
+            this.door = door;
+        }
+
+        public String getDirection() {
+            return direction;
+        }
+
+        /** @return the full name of the room on the other side */
+        public String getFullName() {
+            return fullName;
+        }
+
+        /** @return how the door looks from this side, may be null */
+        public String getDoor() {
+            return door;
+        }
+    }
+
+    private static class Snapshot {
+        final long version;
+        final Map<String, Exit> exits;
+        final String etag;
+        final long validatedAt;
+
+        Snapshot(long version, Map<String, Exit> exits, String etag, long validatedAt) {
+            this.version = version;
+            this.exits = exits;
+            this.etag = etag;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    private final LongSupplier refreshMillis;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pictureroom-exits");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Snapshot snapshot = new Snapshot(0, null, null, 0);
+    private volatile String siteUrl;
+    // after a failed fetch, no reader starts another before this
+    private volatile long retryAt = 0;
+    // fetches failed in a row, only touched by whoever is refreshing
+    private int failures = 0;
+
+    /**
+     * @param refreshMillis how long fetched exits are trusted before being revalidated
+     * @param clock current time in milliseconds
+     */
+    public ExitCache(LongSupplier refreshMillis, LongSupplier clock) {
+        this.refreshMillis = refreshMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Start fetching the room's site from the map.
+     * @param siteUrl url of this room's site, e.g. http://map:9080/map/v1/sites/&lt;id&gt;
+     */
+    public void start(String siteUrl) {
+        this.siteUrl = siteUrl;
+        periodicRefresh();
+    }
+
+    // point at the site without starting the background refreshes, so a test can drive refresh() itself.
+    void setSiteUrl(String siteUrl) {
+        this.siteUrl = siteUrl;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return exits by lowercase direction, empty if the room has none, or null if the map
+     * hasn't told us yet. Never blocks, but kicks off a refresh in the background if what
+     * we have is getting old, unless the last attempt failed too recently.
+     */
+    public Map<String, Exit> getExits() {
+        Snapshot current = snapshot;
+        long now = clock.getAsLong();
+        if (siteUrl != null && now - current.validatedAt > refreshMillis.getAsLong() && now >= retryAt) {
+            refreshAsync();
+        }
+        return current.exits;
+    }
+
+    /** @return changes each time the exits change */
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    private void refreshAsync() {
+        if (siteUrl != null && refreshing.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::refresh);
+            } catch (RuntimeException e) {
+                refreshing.set(false); // shut down
+            }
+        }
+    }
+
+    // revalidate every refresh interval, reading the interval each time as it can be changed.
+    private void periodicRefresh() {
+        refreshAsync();
+        try {
+            scheduler.schedule(this::periodicRefresh, refreshMillis.getAsLong(), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // shut down
+        }
+    }
+
+    void refresh() {
+        boolean fetched = false;
+        try {
+            fetched = revalidate();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Unable to refresh exits from the map, keeping what we had : " + e);
+        } finally {
+            if (fetched) {
+                failures = 0;
+                retryAt = 0;
+            } else {
+                failures++;
+                retryAt = clock.getAsLong()
+                        + Math.min(refreshMillis.getAsLong(), FIRST_RETRY_MILLIS << Math.min(failures - 1, 16));
+            }
+            refreshing.set(false);
+        }
+    }
+
+    /** @return true if the map answered with the site, or that it hasn't changed */
+    private boolean revalidate() throws IOException {
+        Snapshot current = snapshot;
+        HttpURLConnection con = (HttpURLConnection) new URL(siteUrl).openConnection();
+        if (siteUrl.startsWith("https://")) {
+            ((HttpsURLConnection) con).setHostnameVerifier(new TheNotVerySensibleHostnameVerifier());
+        }
+        con.setConnectTimeout(5000);
+        con.setReadTimeout(5000);
+        con.setRequestProperty("Accept", "application/json");
+        if (current.etag != null) {
+            con.setRequestProperty("If-None-Match", current.etag);
+        }
+        try {
+            int status = con.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                snapshot = new Snapshot(current.version, current.exits, current.etag, clock.getAsLong());
+                return true;
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                Map<String, Exit> exits;
+                try (Reader reader = new InputStreamReader(con.getInputStream(), "UTF-8")) {
+                    exits = parseExits(Json.createReader(reader).readObject());
+                }
+                String etag = con.getHeaderField("ETag");
+                snapshot = new Snapshot(current.version + 1, exits, etag, clock.getAsLong());
+                System.out.println("Exits from the map: " + exits.keySet());
+                return true;
+            } else {
+                System.out.println("Map gave http code " + status + " for " + siteUrl + ", keeping the exits we had");
+                return false;
+            }
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    static Map<String, Exit> parseExits(JsonObject site) {
+        JsonObject exits = site.getJsonObject("exits");
+        if (exits == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Exit> parsed = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonValue> e : exits.entrySet()) {
+            if (e.getValue().getValueType() != ValueType.OBJECT) {
+                continue;
+            }
+            JsonObject exit = (JsonObject) e.getValue();
+            String fullName = exit.getString("fullName", exit.getString("name", e.getKey()));
+            String door = exit.getString("door", null);
+            String direction = e.getKey().toLowerCase();
+            parsed.put(direction, new Exit(direction, fullName, door));
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The pictures on the wall.
+ *
+ * Pictures packaged in the war are always there. Optionally a directory of extra
+ * <code>&lt;name&gt;.txt</code> pictures can be given, which is watched, so pictures can be
+ * added, changed or removed without a redeploy. A picture in the directory with the same
+ * name as a packaged one replaces it.
+ *
+ * Readers only ever see an immutable {@link Snapshot}, which is swapped in whole once a
+ * burst of file changes has settled. Only the files that changed are read again.
+ */
+public class PictureCatalog {
+
+    /** Pictures packaged in the war, in the order they hang on the wall. */
+    private static final List<String> BUNDLED = Arrays.asList("Masterpiece", "Scribble", "Sketch", "Mugshot", "Portrait");
+    private static final String SUFFIX = ".txt";
+
+    /**
+     * An immutable view of the catalog.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final Map<String, PictureRoomPicture> pictures;
+        private final List<String> objects;
+        private final PictureIndex index;
+
+        Snapshot(long version, Map<String, PictureRoomPicture> pictures) {
+            this.version = version;
+            this.pictures = Collections.unmodifiableMap(pictures);
+            List<String> names = new ArrayList<>();
+            for (PictureRoomPicture p : pictures.values()) {
+                names.add(p.getName());
+            }
+            this.objects = Collections.unmodifiableList(names);
+            this.index = new PictureIndex(pictures.values());
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /** @return display names of the pictures, for the room's object list */
+        public List<String> getObjects() {
+            return objects;
+        }
+
+        /** @return the picture with this (case insensitive) name, or null */
+        public PictureRoomPicture get(String name) {
+            return pictures.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * Work out which picture a player meant, allowing for prefixes and near misses.
+         * Never touches the file system or classloader.
+         */
+        public PictureIndex.Resolution resolve(String input) {
+            return index.resolve(input);
+        }
+
+        /** @return all pictures, keyed by lowercase name */
+        public Map<String, PictureRoomPicture> getPictures() {
+            return pictures;
+        }
+    }
+
+    private final Path directory;
+    private final LongSupplier debounceMillis;
+    private final Map<String, PictureRoomPicture> bundled = new LinkedHashMap<>();
+    // pictures read from the directory, only touched by the watcher thread
+    private final Map<String, PictureRoomPicture> external = new LinkedHashMap<>();
+    private volatile Snapshot snapshot;
+    private WatchService watcher;
+    private Thread watchThread;
+
+    /**
+     * @param directory where to find extra pictures, null or empty for none
+     * @param debounceMillis how long file changes must be quiet before they are published
+     */
+    public PictureCatalog(String directory, LongSupplier debounceMillis) {
+        this.directory = directory == null || directory.trim().isEmpty() ? null : Paths.get(directory.trim());
+        this.debounceMillis = debounceMillis;
+        for (String name : BUNDLED) {
+            PictureRoomPicture picture = PictureRoomPicture.getInstance(name, name.toLowerCase(Locale.ROOT));
+            bundled.put(key(name), picture);
+        }
+        snapshot = new Snapshot(0, new LinkedHashMap<>(bundled));
+    }
+
+    /** @return the current catalog, never null */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Read the picture directory and start watching it, if there is one.
+     */
+    public synchronized void start() {
+        if (directory == null || watchThread != null) {
+            return;
+        }
+        if (!Files.isDirectory(directory)) {
+            System.out.println("Picture directory " + directory + " does not exist, using packaged pictures only");
+            return;
+        }
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.out.println("Unable to watch picture directory " + directory + " : " + e);
+            watcher = null;
+            return;
+        }
+        rescan();
+        watchThread = new Thread(this::watch, "pictureroom-catalog");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    public synchronized void stop() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            watcher = null;
+            watchThread = null;
+        }
+    }
+
+    private void watch() {
+        WatchService service = watcher;
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Set<Path> changed = new HashSet<>();
+                boolean overflow = false;
+                // keep collecting until the directory has been quiet for the debounce window,
+                // so a picture being copied in is only read once it is complete.
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            changed.add(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.out.println("Picture directory " + directory + " is no longer accessible");
+                        return;
+                    }
+                    key = service.poll(debounceMillis.getAsLong(), TimeUnit.MILLISECONDS);
+                }
+                if (overflow) {
+                    rescan();
+                } else {
+                    apply(changed);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    // read everything in the directory again, used at start and when events were lost.
+    private void rescan() {
+        Set<Path> files = new HashSet<>();
+        for (String name : external.keySet()) {
+            files.add(directory.resolve(name + SUFFIX));
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to list picture directory " + directory + " : " + e);
+        }
+        apply(files);
+    }
+
+    private void apply(Set<Path> changed) {
+        boolean modified = false;
+        for (Path file : changed) {
+            String fileName = file.getFileName().toString();
+            if (!fileName.endsWith(SUFFIX) || fileName.length() == SUFFIX.length()) {
+                continue;
+            }
+            String name = fileName.substring(0, fileName.length() - SUFFIX.length());
+            if (Files.isRegularFile(file)) {
+                try {
+                    PictureRoomPicture picture = PictureRoomPicture.fromFile(displayName(name), file);
+                    external.put(key(name), picture);
+                    modified = true;
+                } catch (IOException e) {
+                    System.out.println("Unable to read picture " + file + " : " + e);
+                }
+            } else if (external.remove(key(name)) != null) {
+                modified = true;
+            }
+        }
+        if (modified) {
+            Map<String, PictureRoomPicture> pictures = new LinkedHashMap<>(bundled);
+            pictures.putAll(external);
+            snapshot = new Snapshot(snapshot.getVersion() + 1, pictures);
+            System.out.println("Picture catalog updated, now showing " + snapshot.getObjects());
+        }
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static String displayName(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Works out which picture a player means by "/examine &lt;something&gt;".
+ *
+ * Built once for each catalog snapshot, so resolving is just walking in-memory structures.
+ * Input is normalised (case, spacing, punctuation and a leading article are ignored), then
+ * matched exactly, then as a unique prefix using a trie, and failing that the closest names
+ * within a small edit distance are offered as suggestions using a BK-tree.
+ */
+public class PictureIndex {
+
+    /** Anything longer than this is not a picture name, and isn't worth comparing. */
+    static final int MAX_INPUT = 40;
+
+    private static final String[] ARTICLES = { "the", "a", "an" };
+
+    public enum Status {
+        /** The input named exactly one picture. */
+        FOUND,
+        /** The input was the start of more than one picture's name. */
+        AMBIGUOUS,
+        /** Nothing matched, but some pictures have similar names. */
+        SUGGESTIONS,
+        /** Nothing matched. */
+        NOT_FOUND
+    }
+
+    public static class Resolution {
+        private static final Resolution NOTHING = new Resolution(Status.NOT_FOUND, null, Collections.emptyList());
+
+        private final Status status;
+        private final PictureRoomPicture picture;
+        private final List<String> candidates;
+
+        Resolution(Status status, PictureRoomPicture picture, List<String> candidates) {
+            this.status = status;
+            this.picture = picture;
+            this.candidates = candidates;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /** @return the picture, when the status is {@link Status#FOUND} */
+        public PictureRoomPicture getPicture() {
+            return picture;
+        }
+
+        /** @return display names of the possible pictures, for ambiguous input or suggestions */
+        public List<String> getCandidates() {
+            return candidates;
+        }
+    }
+
+    private final Map<String, PictureRoomPicture> byAlias = new HashMap<>();
+    private final TrieNode trie = new TrieNode();
+    private BkNode bkRoot;
+
+    /**
+     * @param pictures the catalog's pictures
+     */
+    public PictureIndex(Iterable<PictureRoomPicture> pictures) {
+        for (PictureRoomPicture picture : pictures) {
+            String alias = normalize(picture.getName());
+            if (alias == null || byAlias.putIfAbsent(alias, picture) != null) {
+                continue;
+            }
+            trie.insert(alias, picture);
+            if (bkRoot == null) {
+                bkRoot = new BkNode(alias, picture);
+            } else {
+                bkRoot.insert(alias, picture);
+            }
+        }
+    }
+
+    public Resolution resolve(String input) {
+        String alias = normalize(input);
+        if (alias == null) {
+            return Resolution.NOTHING;
+        }
+        PictureRoomPicture exact = byAlias.get(alias);
+        if (exact != null) {
+            return new Resolution(Status.FOUND, exact, Collections.singletonList(exact.getName()));
+        }
+
+        TrieNode node = trie.find(alias);
+        if (node != null) {
+            if (node.count == 1) {
+                return new Resolution(Status.FOUND, node.any, Collections.singletonList(node.any.getName()));
+            }
+            List<String> names = new ArrayList<>();
+            node.collect(names);
+            return new Resolution(Status.AMBIGUOUS, null, names);
+        }
+
+        if (bkRoot != null) {
+            // allow more slack as names get longer, but never enough to match anything at all.
+            int tolerance = alias.length() <= 4 ? 1 : 2;
+            TreeMap<Integer, List<String>> close = new TreeMap<>();
+            bkRoot.search(alias, tolerance, close);
+            if (!close.isEmpty()) {
+                return new Resolution(Status.SUGGESTIONS, null, close.firstEntry().getValue());
+            }
+        }
+        return Resolution.NOTHING;
+    }
+
+    /**
+     * Reduce input to the letters and digits that matter, or null if it can't be a picture
+     * name at all (too long, or looks like a path).
+     */
+    static String normalize(String input) {
+        if (input == null || input.length() > MAX_INPUT
+                || input.indexOf('/') >= 0 || input.indexOf('\\') >= 0 || input.contains("..")) {
+            return null;
+        }
+        String trimmed = input.trim().toLowerCase();
+        for (String article : ARTICLES) {
+            if (trimmed.startsWith(article + " ")) {
+                trimmed = trimmed.substring(article.length() + 1);
+                break;
+            }
+        }
+        StringBuilder sb = new StringBuilder(trimmed.length());
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    private static class TrieNode {
+        final Map<Character, TrieNode> children = new TreeMap<>();
+        // number of names at or below this node, and one of them
+        int count;
+        PictureRoomPicture any;
+        PictureRoomPicture here;
+
+        void insert(String alias, PictureRoomPicture picture) {
+            TrieNode node = this;
+            node.add(picture);
+            for (int i = 0; i < alias.length(); i++) {
+                node = node.children.computeIfAbsent(alias.charAt(i), c -> new TrieNode());
+                node.add(picture);
+            }
+            node.here = picture;
+        }
+
+        private void add(PictureRoomPicture picture) {
+            count++;
+            if (any == null) {
+                any = picture;
+            }
+        }
+
+        TrieNode find(String prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.children.get(prefix.charAt(i));
+            }
+            return node;
+        }
+
+        void collect(List<String> names) {
+            if (here != null) {
+                names.add(here.getName());
+            }
+            for (TrieNode child : children.values()) {
+                child.collect(names);
+            }
+        }
+    }
+
+    private static class BkNode {
+        final String alias;
+        final PictureRoomPicture picture;
+        final Map<Integer, BkNode> children = new HashMap<>();
+
+        BkNode(String alias, PictureRoomPicture picture) {
+            this.alias = alias;
+            this.picture = picture;
+        }
+
+        void insert(String other, PictureRoomPicture otherPicture) {
+            BkNode node = this;
+            while (true) {
+                int d = distance(node.alias, other);
+                BkNode child = node.children.get(d);
+                if (child == null) {
+                    node.children.put(d, new BkNode(other, otherPicture));
+                    return;
+                }
+                node = child;
+            }
+        }
+
+        void search(String target, int tolerance, TreeMap<Integer, List<String>> found) {
+            int d = distance(alias, target);
+            if (d <= tolerance) {
+                found.computeIfAbsent(d, k -> new ArrayList<>()).add(picture.getName());
+            }
+            for (int i = Math.max(1, d - tolerance); i <= d + tolerance; i++) {
+                BkNode child = children.get(i);
+                if (child != null) {
+                    child.search(target, tolerance, found);
+                }
+            }
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
@@ -32,12 +34,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 
 import javax.json.Json;
@@ -60,11 +64,13 @@ import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
-import javax.websocket.RemoteEndpoint.Basic;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
 import net.wasdev.gameon.protocol.EventBuilder;
+import net.wasdev.gameon.protocol.OutboundQueue;
+import net.wasdev.gameon.protocol.RoomEvents;
 import net.wasdev.gameon.security.SecurityUtils;
 import net.wasdev.gameon.security.TheNotVerySensibleHostnameVerifier;
 import net.wasdev.gameon.security.TheVeryTrustingTrustManager;
@@ -83,15 +89,16 @@ import net.wasdev.gameon.security.TheVeryTrustingTrustManager;
 @WebListener
 public class PictureRoom implements ServletContextListener {
 
-    private final static String USERNAME = "username";
-    private final static String USERID = "userId";
+    final static String USERNAME = "username";
+    final static String USERID = "userId";
     private final static String BOOKMARK = "bookmark";
     private final static String CONTENT = "content";
     private final static String TYPE = "type";
     private final static String EXIT = "exit";
     private final static String EXIT_ID = "exitId";
-
-    private Set<String> playersInRoom = Collections.synchronizedSet(new HashSet<String>());
+    private final static String RATE_WINDOW = "pictureroom.rateWindow";
+    // the routing prefix of the player a session said hello as, the roster's own copy
+    private final static String PLAYER = "pictureroom.player";
 
     private static final String name = "PictureRoom";
     private static final String fullName = "A gallery of pictures";
@@ -116,11 +123,50 @@ public class PictureRoom implements ServletContextListener {
 
     private static long bookmark = 0;
 
-    private final Set<Session> sessions = new CopyOnWriteArraySet<Session>();
+    // the container creates an endpoint instance per connection, so anything that
+    // describes the whole room is shared between them.
+    private static final Set<Session> sessions = new CopyOnWriteArraySet<Session>();
+
+    // who is here; changes are coalesced for a short window before being sent to everyone.
+    private static final PresenceRoster presence = new PresenceRoster(
+            () -> RoomSettings.current().getPresenceWindowMillis(),
+            message -> broadcast(sessions, message, OutboundQueue.Lane.CONTROL));
+
+    private static final Map<String, String> commands = Collections.singletonMap("/who", "List who is in the room");
+
+    // the pictures, packaged ones plus any found in PICTURE_DIR, which is watched for changes.
+    private static final PictureCatalog catalog = new PictureCatalog(System.getenv("PICTURE_DIR"),
+            () -> RoomSettings.current().getPictureDebounceMillis());
+
+    // pings every connection, and reaps the ones that have gone quiet, all from one timer wheel.
+    private static final TimerWheel wheel = new TimerWheel(100, 512, PictureRoom::monotonicMillis);
+    private static final SessionLiveness liveness = new SessionLiveness(wheel, PictureRoom::monotonicMillis,
+            () -> RoomSettings.current().getPingIntervalMillis(), () -> RoomSettings.current().getIdleTimeoutMillis(),
+            PictureRoom::reap);
+
+    // live introspection and tuning, see RoomControlMXBean.
+    private static final RoomControl control = new RoomControl(sessions, presence, catalog,
+            () -> bookmark, OutboundQueue::depth);
+
+    // where our doors lead, learned from the map once we know our site id.
+    private static final ExitCache exitCache = new ExitCache(() -> RoomSettings.current().getExitRefreshMillis(),
+            PictureRoom::monotonicMillis);
+
+    // set as the room shuts down, from then on nobody new is let in.
+    private static volatile boolean draining = false;
+
+    // where the room's state is handed from one instance to the next across a redeploy.
+    private static final Path stateFile = Paths.get(System.getenv("ROOM_STATE_FILE") != null
+            ? System.getenv("ROOM_STATE_FILE") : System.getProperty("java.io.tmpdir") + "/pictureroom-state.json");
+
+    // location event content, rendered once for each version of the catalog and exits.
+    private static volatile RenderedLocation location;
     private final Map<String, String> exits = new HashMap<>();
-    private final List<String> objects = new ArrayList<>();
     private final Boolean registrationRequired;
 
+    // number of passes the startup warmup makes over the room's commands, 0 disables it.
+    private final int warmupIterations = (int) RoomSettings.envLong("WARMUP_ITERATIONS", 200);
+
     public PictureRoom() {
         registrationRequired = Boolean.valueOf(System.getenv("REQUIRES_APP_REGISTRATION"));
         String url = System.getenv("HOSTNAME");
@@ -137,11 +183,6 @@ public class PictureRoom implements ServletContextListener {
         exits.put("w", "A shiny metal door, with a bright red handle");
         exits.put("u", "A spiral set of stairs, leading upward into the ceiling");
         exits.put("d", "A tunnel, leading down into the earth");
-        objects.add("Masterpiece");
-        objects.add("Scribble");
-        objects.add("Sketch");
-        objects.add("Mugshot");
-        objects.add("Portrait");
     }
     
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -151,10 +192,22 @@ public class PictureRoom implements ServletContextListener {
 
 
     /**
-     * Entry point at application start, we use this to test for & perform room registration.
+     * Entry point at application start, we use this to warm up the room, and then test
+     * for & perform room registration, so the map only sends players to a warm room.
      */
     @Override
     public final void contextInitialized(final ServletContextEvent e) {
+        OutboundQueue.setLimit(() -> RoomSettings.current().getOutboundQueueLimit());
+        OutboundQueue.setSendTimeout(() -> RoomSettings.current().getSendTimeoutMillis());
+        OutboundQueue.setReplyListener(RoomMetrics::recordReplyWritten);
+        restoreState();
+        catalog.start();
+        liveness.start();
+        control.register();
+        if (warmupIterations > 0) {
+            new RoomWarmup(this, catalog.getSnapshot().getObjects(), warmupIterations).run();
+        }
+
         if (registrationRequired) {
 
             // check if we are already registered..
@@ -174,14 +227,19 @@ public class PictureRoom implements ServletContextListener {
                     JsonArray array = Json.createReader(new StringReader(json)).readArray();
                     JsonString id = array.getJsonObject(0).getJsonString("_id");
                     register("PUT", registrationUrl + "/" + id.getString());
+                    exitCache.start(registrationUrl + "/" + id.getString());
                 } else {
-                    register("POST", registrationUrl);
+                    String id = register("POST", registrationUrl);
+                    if (id != null) {
+                        exitCache.start(registrationUrl + "/" + id);
+                    }
                 }
             } catch (Exception ex) {
                 ex.printStackTrace();
                 throw new RuntimeException(ex);
             }
         }
+        RoomMetrics.markOpen();
     }
     
     private HttpURLConnection isAlreadyRegistered() throws Exception {
@@ -225,7 +283,8 @@ public class PictureRoom implements ServletContextListener {
         HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
     }
     
-    private void register(String method, String registrationUrl) throws Exception {
+    // returns the id the map knows the room by, or null if registration failed
+    private String register(String method, String registrationUrl) throws Exception {
         System.out.println("Beginning registration.");
         String registrationPayloadString = getRegistration();
 
@@ -269,13 +328,10 @@ public class PictureRoom implements ServletContextListener {
         int httpResult = con.getResponseCode();
         if (httpResult == HttpURLConnection.HTTP_OK || httpResult == HttpURLConnection.HTTP_CREATED) {
             System.out.println("Registration reports success.");
-            getJSONResponse(con);
-            // here we should remember the exits we're told about,
-            // so we can
-            // use them when the user does /go direction
-            // But we're not dealing with exits here (yet)..
-            // user's will have to /sos out of us .. (bad, but ok
-            // for now)
+            String json = getJSONResponse(con);
+            // the exits come from the map via the exit cache, which only needs our id.
+            JsonObject site = Json.createReader(new StringReader(json)).readObject();
+            return site.getString("_id", null);
         } else {
             System.out.println(
                     "Registration gave http code: " + con.getResponseCode() + " " + con.getResponseMessage());
@@ -287,6 +343,7 @@ public class PictureRoom implements ServletContextListener {
                 System.out.println(response);
             }
             System.out.println("Room Registration FAILED .. this room has NOT been registered");
+            return null;
         }
     }
     
@@ -331,6 +388,12 @@ public class PictureRoom implements ServletContextListener {
     public void contextDestroyed(ServletContextEvent sce) {
         // Here we could deregister, if we wanted.. we'd need to read the registration/query
         // response to cache the room id, so we could remove it as we shut down.
+        drain();
+        presence.shutdown();
+        catalog.stop();
+        liveness.stop();
+        control.unregister();
+        exitCache.stop();
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -339,7 +402,14 @@ public class PictureRoom implements ServletContextListener {
 
     @OnOpen
     public void onOpen(Session session, EndpointConfig ec) {
-        System.out.println("A new connection has been made to the room.");
+        if (RoomSettings.current().isInfo()) {
+            System.out.println("A new connection has been made to the room.");
+        }
+        if (draining) {
+            tryToClose(session, new CloseReason(CloseCodes.GOING_AWAY, "Room is restarting"));
+            return;
+        }
+        liveness.track(session);
 
         //send ack
         sendRemoteTextMessage(session, "ack,{\"version\":[1]}");
@@ -347,35 +417,104 @@ public class PictureRoom implements ServletContextListener {
 
     @OnClose
     public void onClose(Session session, CloseReason r) {
-        System.out.println("A connection to the room has been closed");
+        if (RoomSettings.current().isInfo()) {
+            System.out.println("A connection to the room has been closed");
+        }
+        forget(session);
     }
 
     @OnError
     public void onError(Session session, Throwable t) {
         if(session!=null){
-            sessions.remove(session);
+            forget(session);
         }
         System.out.println("Websocket connection has broken");
         t.printStackTrace();
     }
 
+    @OnMessage
+    public void onPong(PongMessage pong, Session session) {
+        liveness.seen(session);
+    }
+
     @OnMessage
     public void receiveMessage(String message, Session session) throws IOException {
+        // so what is sent in reply can be timed from here to when it is written
+        OutboundQueue.handling(System.nanoTime());
+        try {
+            liveness.seen(session);
+            receiveMessage(message, session, false);
+            RoomMetrics.recordMessage();
+        } finally {
+            OutboundQueue.handled();
+        }
+    }
+
+    // warmup messages take the same path as real ones, but stay out of the logs.
+    void receiveMessage(String message, Session session, boolean warmup) throws IOException {
+        RoomEvents.MessageEvent messageEvent = RoomEvents.beginMessage();
+
+        RoomEvents.ParseEvent parseEvent = RoomEvents.beginParse();
         String[] contents = splitRouting(message);
+        if (contents.length < 3 || !isRoomRouting(contents[0])) {
+            // nothing the room acts on, so left alone rather than parsed
+            return;
+        }
+        JsonObject msg = Json.createReader(new StringReader(contents[2])).readObject();
+        RoomEvents.endParse(parseEvent, contents[0], message.length());
 
+        String verb = verbOf(contents[0], msg);
+        RoomEvents.CommandEvent commandEvent = RoomEvents.beginCommand();
         // Who doesn't love switch on strings in Java 8?
         switch(contents[0]) {
             case "roomHello":
+                if (draining) {
+                    tryToClose(session, new CloseReason(CloseCodes.GOING_AWAY, "Room is restarting"));
+                    break;
+                }
                 sessions.add(session);
-                addNewPlayer(session, contents[2]);
+                addNewPlayer(session, msg);
                 break;
             case "room":
-                processCommand(session, contents[2]);
+                // the warmup sends many commands in a burst, it isn't a player to slow down
+                if (warmup || withinRateLimit(session)) {
+                    processCommand(session, msg, warmup);
+                } else {
+                    sendMessageToRoom(session, null, "Slow down! You are sending messages too quickly.",
+                            getValue(msg.get(USERID)));
+                }
                 break;
             case "roomGoodbye":
-                removePlayer(session, contents[2]);
+                removePlayer(session, msg);
                 break;
         }
+        RoomEvents.endCommand(commandEvent, contents[0], verb, EventBuilder.lastBookmark());
+        RoomEvents.endMessage(messageEvent, contents[0], verb, message.length(), EventBuilder.lastBookmark());
+    }
+
+    private static boolean isRoomRouting(String routing) {
+        switch (routing) {
+            case "roomHello":
+            case "room":
+            case "roomGoodbye":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // the command word of a room message (chat is just "chat"), or the routing for anything else.
+    private static String verbOf(String routing, JsonObject msg) {
+        if (!"room".equals(routing)) {
+            return routing;
+        }
+        JsonValue content = msg.get(CONTENT);
+        String text = content == null ? "" : getValue(content);
+        if (!text.startsWith("/")) {
+            return "chat";
+        }
+        int space = text.indexOf(' ');
+        return (space < 0 ? text : text.substring(0, space)).toLowerCase();
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -383,61 +522,96 @@ public class PictureRoom implements ServletContextListener {
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     // add a new player to the room
-    private void addNewPlayer(Session session, String json) throws IOException {
-        if (session.getUserProperties().get(USERNAME) != null) {
+    private void addNewPlayer(Session session, JsonObject msg) throws IOException {
+        if (session.getUserProperties().get(PLAYER) != null) {
             return; // already seen this user before on this socket
         }
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
         String username = getValue(msg.get(USERNAME));
         String userid = getValue(msg.get(USERID));
 
-        if (playersInRoom.add(userid)) {
+        // the session now owns the player's presence, taking it over from any older connection
+        boolean entered = presence.join(userid, username, session);
+        String prefix = presence.routingPrefix(userid);
+        session.getUserProperties().put(PLAYER, prefix);
+        if (entered) {
             // broadcast that the user has entered the room
-            EventBuilder.playerEvent(Collections.singletonList(session),
+            EventBuilder.routedPlayerEvent(Collections.singletonList(session), prefix,
                     userid, "You have entered the room", "Player " + username + " has entered the room");
-           
-            EventBuilder.locationEvent(Collections.singletonList(session),
-                    userid, name, fullName, description, exits, objects, Collections.emptyList(), Collections.emptyMap());
         }
+        // every connection that says hello needs somewhere to be, including one taking over
+        // from an older connection of a player who is already here.
+        EventBuilder.routedLocationEvent(Collections.singletonList(session), prefix, renderedLocation());
+
+        // the one time this connection is sent everyone, diffs keep it current from here.
+        presence.sendFullRoster(prefix,
+                roster -> sendRemoteTextMessage(session, roster, 1, OutboundQueue.Lane.CONTROL));
     }
 
     // remove a player from the room.
-    private void removePlayer(Session session, String json) throws IOException {
+    private void removePlayer(Session session, JsonObject msg) throws IOException {
         sessions.remove(session);
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
         String username = getValue(msg.get(USERNAME));
         String userid = getValue(msg.get(USERID));
-        playersInRoom.remove(userid);
+        session.getUserProperties().remove(PLAYER);
+        // only the connection the player's presence belongs to can take them out of the room.
+        presence.leave(userid, session);
 
         // broadcast that the user has left the room
         sendMessageToRoom(session, "Player " + username + " has left the room", null, userid);
     }
 
     // process a command
-    private void processCommand(Session session, String json) throws IOException {
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
+    private void processCommand(Session session, JsonObject msg, boolean warmup) throws IOException {
         String userid = getValue(msg.get(USERID));
         String username = getValue(msg.get(USERNAME));
         String content = getValue(msg.get(CONTENT)).toString();
         String lowerContent = content.toLowerCase();
 
-        System.out.println("Command received from the user, " + content);
+        boolean log = !warmup && RoomSettings.current().isInfo();
+        if (log) {
+            System.out.println("Command received from the user, " + content);
+        }
 
         // handle look command
         if (lowerContent.equals("/look")) {
             // resend the room description when we receive /look
-            EventBuilder.locationEvent(Collections.singletonList(session),
-                    userid, name, fullName, description, exits, objects, Collections.emptyList(), Collections.emptyMap());
+            EventBuilder.routedLocationEvent(Collections.singletonList(session), prefixOf(session, userid),
+                    renderedLocation());
+            return;
+        }
+
+        if (lowerContent.equals("/who")) {
+            sendMessageToRoom(session, null, presence.who(), userid);
             return;
         }
         
         String examine = "/examine ";
         if(lowerContent.startsWith(examine)) {
             String item = lowerContent.substring(examine.length());
-            System.out.println("Finding portrait" + item);
-            PictureRoomPicture pic = PictureRoomPicture.getInstance(item, item);
-            EventBuilder.playerEvent(Collections.singletonList(session), userid, pic.getDescription(), null);
-            System.out.println("Sending content back to player");
+            if (log) {
+                System.out.println("Finding portrait" + item);
+            }
+            PictureIndex.Resolution found = catalog.getSnapshot().resolve(item);
+            switch (found.getStatus()) {
+                case FOUND:
+                    EventBuilder.streamedPlayerEvent(session, prefixOf(session, userid), userid,
+                            found.getPicture().getDescription());
+                    break;
+                case AMBIGUOUS:
+                    sendMessageToRoom(session, null, "Which picture do you mean? "
+                            + String.join(", ", found.getCandidates()), userid);
+                    return;
+                case SUGGESTIONS:
+                    sendMessageToRoom(session, null, "There is no picture like that here. Did you mean "
+                            + String.join(" or ", found.getCandidates()) + "?", userid);
+                    return;
+                default:
+                    sendMessageToRoom(session, null, "There is no picture like that here.", userid);
+                    return;
+            }
+            if (log) {
+                System.out.println("Sending content back to player");
+            }
             return;
         }
 
@@ -448,17 +622,23 @@ public class PictureRoom implements ServletContextListener {
                 exitDirection = lowerContent.substring(4).toLowerCase();
             }
 
-            if ( exitDirection == null || !directions.contains(exitDirection) ) {
+            // once the map has told us where our doors go, only those are ways out.
+            Map<String, ExitCache.Exit> known = exitCache.getExits();
+            boolean valid = exitDirection != null
+                    && (known == null ? directions.contains(exitDirection) : known.containsKey(exitDirection));
+
+            if ( !valid ) {
                 sendMessageToRoom(session, null, "Hmm. That direction didn't make sense. Try again?", userid);
             } else {
                 // Trying to go somewhere, eh?
+                ExitCache.Exit exit = known == null ? null : known.get(exitDirection);
                 JsonObjectBuilder response = Json.createObjectBuilder();
                 response.add(TYPE, EXIT)
                 .add(EXIT_ID, exitDirection)
                 .add(BOOKMARK, bookmark++)
-                .add(CONTENT, "Run Away!");
+                .add(CONTENT, exit == null ? "Run Away!" : "You head towards " + exit.getFullName());
 
-                sendRemoteTextMessage(session, "playerLocation," + userid + "," + response.build().toString());
+                sendRemoteTextMessage(session, presence.locationPrefix(userid) + response.build().toString());
             }
             return;
         }
@@ -495,7 +675,7 @@ public class PictureRoom implements ServletContextListener {
         response.add(BOOKMARK, bookmark++);
 
         if(messageForRoom==null){
-            sendRemoteTextMessage(session, "player," + userid + "," + response.build().toString());
+            sendRemoteTextMessage(session, prefixOf(session, userid) + response.build().toString());
         }else{
             broadcast(sessions, "player,*," + response.build().toString());
         }
@@ -505,6 +685,150 @@ public class PictureRoom implements ServletContextListener {
     // Util fns.
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    private static long monotonicMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    // a simple per-second message count for each session, checked against the current limit.
+    private static boolean withinRateLimit(Session session) {
+        int limit = RoomSettings.current().getMessagesPerSecond();
+        if (limit <= 0) {
+            return true;
+        }
+        long second = monotonicMillis() / 1000;
+        long[] window = (long[]) session.getUserProperties().computeIfAbsent(RATE_WINDOW, k -> new long[2]);
+        synchronized (window) {
+            if (window[0] != second) {
+                window[0] = second;
+                window[1] = 0;
+            }
+            return ++window[1] <= limit;
+        }
+    }
+
+    // the prefix for routing to whoever sent a message, kept from their hello, or built now
+    // if the session never said hello as them.
+    private static String prefixOf(Session session, String userid) {
+        String prefix = (String) session.getUserProperties().get(PLAYER);
+        return prefix != null && prefix.length() == "player,".length() + userid.length() + 1
+                && prefix.startsWith(userid, "player,".length()) ? prefix : "player," + userid + ",";
+    }
+
+    // a connection has gone, whether or not we were told the player left.
+    private static void forget(Session session) {
+        sessions.remove(session);
+        liveness.untrack(session);
+        OutboundQueue.forget(session);
+        String prefix = (String) session.getUserProperties().remove(PLAYER);
+        // only the connection the player's presence belongs to can take them out of the room.
+        // While draining nobody is leaving, they are moving to the next instance with the
+        // roster we have saved, so the players still connected aren't told otherwise.
+        if (prefix != null && !draining) {
+            presence.leave(prefix.substring("player,".length(), prefix.length() - 1), session);
+        }
+    }
+
+    // connections that stopped answering pings, closed together once per wheel tick.
+    private static void reap(List<Session> stale) {
+        System.out.println("Reaping " + stale.size() + " idle connection(s)");
+        for (Session session : stale) {
+            forget(session);
+            tryToClose(session, new CloseReason(CloseCodes.GOING_AWAY, "Connection idle"));
+        }
+    }
+
+    /**
+     * Let everyone go gradually rather than all at once, so they don't all come back to the
+     * next instance at once either. The state is handed on once the last of them has gone,
+     * so it has every bookmark given out while they were leaving. Nobody leaves the roster
+     * while draining, so it is still whole.
+     */
+    private static void drain() {
+        draining = true;
+        List<Session> leaving = new ArrayList<>(sessions);
+        long window = RoomSettings.current().getDrainWindowMillis();
+        System.out.println("Draining " + leaving.size() + " connection(s) over " + window + "ms");
+        long start = monotonicMillis();
+        for (int i = 0; i < leaving.size(); i++) {
+            // evenly spaced, however many there are
+            long wait = start + window * i / leaving.size() - monotonicMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    window = 0; // close the rest now
+                }
+            }
+            Session session = leaving.get(i);
+            // anything still queued for them is on its way out, give it a moment to go, as
+            // long as that doesn't take the drain past its window
+            for (long flushBy = Math.min(monotonicMillis() + 100, start + window); OutboundQueue.depth(session) > 0
+                    && monotonicMillis() < flushBy && !Thread.currentThread().isInterrupted();) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            forget(session);
+            tryToClose(session, new CloseReason(CloseCodes.GOING_AWAY, "Room is restarting"));
+        }
+
+        long bookmarks = Math.max(bookmark, EventBuilder.lastBookmark());
+        try {
+            new RoomState(System.currentTimeMillis(), bookmarks, presence.getVersion(), presence.published())
+                    .save(stateFile);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Unable to save room state to " + stateFile + " : " + e);
+        }
+    }
+
+    // pick up where the previous instance left off, if it drained recently.
+    private static void restoreState() {
+        RoomState state = RoomState.take(stateFile, System.currentTimeMillis());
+        if (state == null) {
+            return;
+        }
+        bookmark = Math.max(bookmark, state.getBookmark());
+        EventBuilder.resumeBookmarks((int) state.getBookmark());
+        long grace = RoomState.MAX_AGE_MILLIS - (System.currentTimeMillis() - state.getSavedAt());
+        presence.restore(state.getPresenceVersion(), state.getPlayers(), Math.max(0, grace));
+        System.out.println("Restored room state: " + state.getPlayers().size() + " player(s), bookmark "
+                + state.getBookmark());
+    }
+
+    // never blocks, if the catalog has moved on we render again, and racing renders are harmless.
+    private String renderedLocation() {
+        PictureCatalog.Snapshot current = catalog.getSnapshot();
+        Map<String, ExitCache.Exit> known = exitCache.getExits();
+        long exitsVersion = exitCache.getVersion();
+        RenderedLocation rendered = location;
+        if (rendered == null || rendered.catalogVersion != current.getVersion() || rendered.exitsVersion != exitsVersion) {
+            rendered = new RenderedLocation(current.getVersion(), exitsVersion, EventBuilder.renderLocation(name, fullName,
+                    description, known == null ? exits : describe(known), current.getObjects(),
+                    Collections.emptyList(), commands));
+            location = rendered;
+        }
+        return rendered.json;
+    }
+
+    private static Map<String, String> describe(Map<String, ExitCache.Exit> known) {
+        Map<String, String> described = new LinkedHashMap<>();
+        for (ExitCache.Exit exit : known.values()) {
+            described.put(exit.getDirection(), exit.getDoor() != null ? exit.getDoor() : exit.getFullName());
+        }
+        return described;
+    }
+
+    private static class RenderedLocation {
+        final long catalogVersion;
+        final long exitsVersion;
+        final String json;
+
+        RenderedLocation(long catalogVersion, long exitsVersion, String json) {
+            this.catalogVersion = catalogVersion;
+            this.exitsVersion = exitsVersion;
+            this.json = json;
+        }
+    }
+
     private String[] splitRouting(String message) {
         ArrayList<String> list = new ArrayList<>();
 
@@ -539,49 +863,39 @@ public class PictureRoom implements ServletContextListener {
      *            Message to send
      * @see #sendRemoteTextMessage(Session, RoutedMessage)
      */
-    public void broadcast(Set<Session> sessions, String message) {
+    public static void broadcast(Set<Session> sessions, String message) {
+        broadcast(sessions, message, OutboundQueue.Lane.of(message));
+    }
+
+    private static void broadcast(Set<Session> sessions, String message, OutboundQueue.Lane lane) {
+        int fanOut = sessions.size();
         for (Session s : sessions) {
-            sendRemoteTextMessage(s, message);
+            sendRemoteTextMessage(s, message, fanOut, lane);
         }
     }
 
     /**
-     * Try sending the {@link RoutedMessage} using
-     * {@link Session#getBasicRemote()}, {@link Basic#sendObject(Object)}.
+     * Queue the message for sending on the session, see {@link OutboundQueue}.
      *
      * @param session
      *            Session to send the message on
      * @param message
      *            Message to send
-     * @return true if send was successful, or false if it failed
+     * @return true if the message was queued to send, or false if the session is closed
      */
-    public boolean sendRemoteTextMessage(Session session, String message) {
+    public static boolean sendRemoteTextMessage(Session session, String message) {
+        return sendRemoteTextMessage(session, message, 1, OutboundQueue.Lane.of(message));
+    }
+
+    private static boolean sendRemoteTextMessage(Session session, String message, int fanOut, OutboundQueue.Lane lane) {
         if (session.isOpen()) {
-            try {
-                session.getBasicRemote().sendText(message);
-                return true;
-            } catch (IOException ioe) {
-                // An IOException, on the other hand, suggests the connection is
-                // in a bad state.
-                System.out.println("Unexpected condition writing message: " + ioe);
-                tryToClose(session, new CloseReason(CloseCodes.UNEXPECTED_CONDITION, trimReason(ioe.toString())));
-            }
+            // queued, a connection found to be in a bad state is closed by the sender
+            EventBuilder.send(session, message, fanOut, lane);
+            return true;
         }
         return false;
     }
 
-    /**
-     * {@code CloseReason} can include a value, but the length of the text is
-     * limited.
-     *
-     * @param message
-     *            String to trim
-     * @return a string no longer than 123 characters.
-     */
-    private static String trimReason(String message) {
-        return message.length() > 123 ? message.substring(0, 123) : message;
-    }
-
     /**
      * Try to close the WebSocket session and give a reason for doing so.
      *
@@ -590,7 +904,7 @@ public class PictureRoom implements ServletContextListener {
      * @param reason
      *            {@link CloseReason} the WebSocket is closing.
      */
-    public void tryToClose(Session s, CloseReason reason) {
+    public static void tryToClose(Session s, CloseReason reason) {
         try {
             s.close(reason);
         } catch (IOException e) {
@@ -605,7 +919,7 @@ public class PictureRoom implements ServletContextListener {
      * @param c
      *            Closable to close
      */
-    public void tryToClose(Closeable c) {
+    public static void tryToClose(Closeable c) {
         if (c != null) {
             try {
                 c.close();
@@ -2,39 +2,120 @@ package net.wasdev.gameon.pictureroom;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import net.wasdev.gameon.protocol.JsonChunks;
+import net.wasdev.gameon.protocol.RoomEvents;
 
 public class PictureRoomPicture {
+    private static final String MISSING = "Oops, no picture description could be found.";
+
     private final String name;
-    private final String description;
-    
-    private PictureRoomPicture(String name, String desc) {
+    // the description isn't kept, it is read from the war or the file each time it is sent
+    private final JsonChunks.Source description;
+
+    // UTF-8 sizes of the description as sent, plain and deflated, worked out as it is first read.
+    private final long jsonBytes;
+    private final long compressedLength;
+
+    private PictureRoomPicture(String name, JsonChunks.Source desc, long jsonBytes, long compressedLength) {
         this.name = name;
         description = desc;
+        this.jsonBytes = jsonBytes;
+        this.compressedLength = compressedLength;
     }
     
     public String getName() {
         return name;
     }
 
-    public String getDescription() {
+    /** @return where to read the description from, as it is sent */
+    public JsonChunks.Source getDescription() {
         return description;
     }
 
+    /** @return UTF-8 size of the description as a quoted, escaped json string */
+    public long getJsonBytes() {
+        return jsonBytes;
+    }
+
+    /**
+     * Size of the json rendering of the description, raw deflate compressed as
+     * permessage-deflate would send it, for sizing what a compressed /examine would put on
+     * the wire. Only the size is kept, the compressed bytes are counted and thrown away.
+     */
+    public long getCompressedLength() {
+        return compressedLength;
+    }
+
     public static PictureRoomPicture getInstance(String name, String imgfile) {
-        try(InputStream stream = PictureRoomPicture.class.getResourceAsStream("/" + imgfile +".txt")) {
-            if(stream == null) {
-                return new PictureRoomPicture(name, "Oops, no picture description could be found.");
+        String resource = "/" + imgfile + ".txt";
+        if (PictureRoomPicture.class.getResource(resource) == null) {
+            return load(name, () -> new StringReader(MISSING));
+        }
+        return load(name, () -> {
+            InputStream stream = PictureRoomPicture.class.getResourceAsStream(resource);
+            if (stream == null) {
+                System.out.println("Error reading room description : " + resource + " has gone");
+                return new StringReader(MISSING);
+            }
+            return new InputStreamReader(stream, StandardCharsets.UTF_8);
+        });
+    }
+
+    /**
+     * Read a picture from outside of the war. The file is read again each time the picture
+     * is examined, the catalog replaces or drops the picture when the file changes.
+     * @throws IOException if the file can't be read, it is up to the caller whether that matters
+     */
+    public static PictureRoomPicture fromFile(String name, Path file) throws IOException {
+        if (!Files.isReadable(file)) {
+            throw new IOException(file + " can't be read");
+        }
+        return load(name, () -> Files.newBufferedReader(file, StandardCharsets.UTF_8));
+    }
+
+    // one pass through the description, to size it
+    private static PictureRoomPicture load(String name, JsonChunks.Source desc) {
+        RoomEvents.PictureLoadEvent event = RoomEvents.beginPictureLoad();
+        long jsonBytes = 0;
+        CountingOutputStream out = new CountingOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (JsonChunks json = new JsonChunks("", desc, "");
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1024)) {
+            while (json.hasNext()) {
+                byte[] chunk = json.next().getBytes(StandardCharsets.UTF_8);
+                jsonBytes += chunk.length;
+                deflated.write(chunk);
             }
-            StringBuffer desc = new StringBuffer();
-            int read = 0;
-            byte[] buffer = new byte[1024];
-            while((read = stream.read(buffer)) != -1) {
-                desc.append(new String(buffer, 0, read));
-            } 
-            return new PictureRoomPicture(name, desc.toString());
+            deflated.finish();
         } catch (IOException e) {
-            System.out.println("Error reading room description : " + e.getMessage());
-            return new PictureRoomPicture(name, "Oops, no picture description could be found.");
+            throw new IllegalStateException(e); // not from a counter
+        } finally {
+            deflater.end();
+        }
+        RoomEvents.endPictureLoad(event, name, (int) jsonBytes);
+        return new PictureRoomPicture(name, desc, jsonBytes, out.count);
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
         }
     }
 }
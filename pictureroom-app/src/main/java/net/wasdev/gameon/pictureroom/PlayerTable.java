@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.util.Arrays;
+
+/**
+ * Players, each given a small int handle, with what we know about them kept in arrays
+ * indexed by that handle.
+ *
+ * A crowd of players costs a few arrays rather than a map entry (and boxed values) per
+ * player for each thing we remember about them. The routing prefixes each player's messages
+ * start with are built once, when they are added, and are the only copies of their userId
+ * the table keeps. Handles are dense, and the handle of a player who is removed is handed out
+ * again to the next player added.
+ *
+ * Not thread safe, the owner is expected to hold its own lock.
+ */
+class PlayerTable {
+
+    private static final int NONE = -1;
+    private static final int REMOVED = -2;
+    private static final String PREFIX = "player,";
+    private static final String LOCATION_PREFIX = "playerLocation,";
+
+    // player,<userId>, by handle
+    private String[] prefixes;
+    // playerLocation,<userId>, by handle
+    private String[] locationPrefixes;
+    private int[] hashes;
+    private String[] usernames;
+
+    // handles given back, reused before any new ones
+    private int[] free;
+    private int freeCount;
+    // handles that have ever been used
+    private int used;
+    private int size;
+
+    // open addressing, userId hash -> handle, NONE for empty, REMOVED for a gap left behind
+    private int[] index;
+    private int removedSlots;
+
+    PlayerTable(int initialCapacity) {
+        int capacity = Math.max(4, initialCapacity);
+        prefixes = new String[capacity];
+        locationPrefixes = new String[capacity];
+        hashes = new int[capacity];
+        usernames = new String[capacity];
+        free = new int[capacity];
+        index = newIndex(capacity * 2);
+    }
+
+    /** @return the player's handle, or -1 if they're not in the table */
+    int find(String userId) {
+        int hash = spread(userId.hashCode());
+        int mask = index.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int h = index[i];
+            if (h == NONE) {
+                return NONE;
+            }
+            if (h != REMOVED && hashes[h] == hash && matches(prefixes[h], userId)) {
+                return h;
+            }
+        }
+    }
+
+    /**
+     * Add a player who is not already in the table.
+     * @return the player's handle
+     */
+    int add(String userId, String username) {
+        int h;
+        if (freeCount > 0) {
+            h = free[--freeCount];
+        } else {
+            if (used == prefixes.length) {
+                grow();
+            }
+            h = used++;
+        }
+        prefixes[h] = PREFIX + userId + ",";
+        locationPrefixes[h] = LOCATION_PREFIX + userId + ",";
+        hashes[h] = spread(userId.hashCode());
+        usernames[h] = username;
+        size++;
+        if ((size + removedSlots) * 2 > index.length) {
+            rehash(index.length * (size * 4 > index.length ? 2 : 1));
+        }
+        insert(h);
+        return h;
+    }
+
+    /** Remove a player, after which their handle may be given to someone else. */
+    void remove(int h) {
+        int mask = index.length - 1;
+        for (int i = hashes[h] & mask;; i = (i + 1) & mask) {
+            if (index[i] == h) {
+                index[i] = REMOVED;
+                removedSlots++;
+                break;
+            }
+        }
+        prefixes[h] = null;
+        locationPrefixes[h] = null;
+        usernames[h] = null;
+        free[freeCount++] = h;
+        size--;
+    }
+
+    String userId(int h) {
+        return prefixes[h].substring(PREFIX.length(), prefixes[h].length() - 1);
+    }
+
+    String username(int h) {
+        return usernames[h];
+    }
+
+    void setUsername(int h, String username) {
+        usernames[h] = username;
+    }
+
+    /** @return <code>player,&lt;userId&gt;,</code>, to route a message to just this player */
+    String prefix(int h) {
+        return prefixes[h];
+    }
+
+    /** @return <code>playerLocation,&lt;userId&gt;,</code>, to tell just this player where they went */
+    String locationPrefix(int h) {
+        return locationPrefixes[h];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** @return one more than the highest handle in use, or ever used */
+    int capacity() {
+        return used;
+    }
+
+    private void grow() {
+        int capacity = prefixes.length * 2;
+        prefixes = Arrays.copyOf(prefixes, capacity);
+        locationPrefixes = Arrays.copyOf(locationPrefixes, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        usernames = Arrays.copyOf(usernames, capacity);
+        free = Arrays.copyOf(free, capacity);
+    }
+
+    private void rehash(int length) {
+        index = newIndex(length);
+        removedSlots = 0;
+        for (int h = 0; h < used; h++) {
+            if (prefixes[h] != null) {
+                insert(h);
+            }
+        }
+    }
+
+    private void insert(int h) {
+        int mask = index.length - 1;
+        int i = hashes[h] & mask;
+        while (index[i] >= 0 && index[i] != h) {
+            i = (i + 1) & mask;
+        }
+        if (index[i] == REMOVED) {
+            removedSlots--;
+        }
+        index[i] = h;
+    }
+
+    private static boolean matches(String prefix, String userId) {
+        return prefix.length() == PREFIX.length() + userId.length() + 1
+                && prefix.regionMatches(PREFIX.length(), userId, 0, userId.length());
+    }
+
+    private static int[] newIndex(int length) {
+        int[] index = new int[Integer.highestOneBit(Math.max(8, length) - 1) << 1];
+        Arrays.fill(index, NONE);
+        return index;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.websocket.Session;
+
+/**
+ * Versioned record of who is in the room.
+ *
+ * There are two views of the roster. The live view changes as players come and go, and
+ * decides whether a hello or goodbye is new. The published view is what clients have been
+ * told. Changes to the live view are coalesced for a short window, then published to
+ * everyone as a single add/remove diff with a new version number, so presence traffic
+ * grows with churn rather than with the number of players in the room.
+ *
+ * A player joining gets the whole published view once, after which the diffs keep them
+ * up to date. The full view and the /who text are rendered once per version. Diffs and full
+ * views are both handed over to be sent while the roster is locked, so a session is never
+ * given a diff newer than its full view ahead of it.
+ *
+ * Players are kept in a {@link PlayerTable}, with both views held as flags and links
+ * indexed by the player's handle, so a large crowd doesn't cost a map entry per player
+ * per view. The connection each player's presence belongs to is kept by handle too: a
+ * player who reconnects before their old connection is found dead is handed to the new
+ * connection, and only that one can take them out of the room.
+ */
+public class PresenceRoster {
+
+    private static final String TYPE = "type";
+    private static final String PRESENCE = "presence";
+    private static final String VERSION = "version";
+
+    private final LongSupplier windowMillis;
+    private final Consumer<String> broadcaster;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pictureroom-presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final byte LIVE = 1;
+    private static final byte PUBLISHED = 2;
+    private static final byte TOUCHED = 4;
+
+    // everyone who is either in the room, or who clients still think is in the room
+    private final PlayerTable players = new PlayerTable(64);
+    // by handle, LIVE/PUBLISHED/TOUCHED
+    private byte[] flags = new byte[64];
+    // by handle, the connection a live player's presence belongs to
+    private Session[] owners = new Session[64];
+    // by handle, the published view in arrival order as a doubly linked list
+    private int[] before = new int[64];
+    private int[] after = new int[64];
+    private int first = -1;
+    private int last = -1;
+    private int liveCount;
+    private int publishedCount;
+    // handles changed in the live view since the last publish
+    private int[] touched = new int[64];
+    private int touchedCount;
+    private boolean flushScheduled = false;
+    private long version = 0;
+
+    // renderings of the published view, rebuilt lazily after each publish
+    private String fullRendering;
+    private String whoRendering;
+
+    /**
+     * @param windowMillis how long changes are coalesced for before being published
+     * @param broadcaster queues a routed message for every session in the room, must not block
+     */
+    public PresenceRoster(LongSupplier windowMillis, Consumer<String> broadcaster) {
+        this.windowMillis = windowMillis;
+        this.broadcaster = broadcaster;
+    }
+
+    /**
+     * Record a player as present, on the given connection, which takes the player over
+     * from any other they were present on.
+     * @return true if the player was not already present
+     */
+    public synchronized boolean join(String userId, String username, Session owner) {
+        int h = players.find(userId);
+        if (h < 0) {
+            h = players.add(userId, username);
+            ensureCapacity(players.capacity());
+        } else if ((flags[h] & LIVE) != 0) {
+            owners[h] = owner;
+            return false;
+        } else {
+            players.setUsername(h, username);
+        }
+        owners[h] = owner;
+        flags[h] |= LIVE;
+        liveCount++;
+        touch(h);
+        return true;
+    }
+
+    /**
+     * Record a player as gone, if their presence belongs to the given connection.
+     * @return true if the player had been present on that connection
+     */
+    public synchronized boolean leave(String userId, Session owner) {
+        int h = players.find(userId);
+        if (h < 0 || (flags[h] & LIVE) == 0 || owners[h] != owner) {
+            return false;
+        }
+        owners[h] = null;
+        flags[h] &= ~LIVE;
+        liveCount--;
+        touch(h);
+        return true;
+    }
+
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    /** @return version of the published roster */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /** @return userId -&gt; username for everyone clients have been told about, in arrival order */
+    public synchronized Map<String, String> published() {
+        Map<String, String> snapshot = new LinkedHashMap<>();
+        for (int h = first; h >= 0; h = after[h]) {
+            snapshot.put(players.userId(h), players.username(h));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Carry on from a roster published by an earlier instance of the room, so that players
+     * reconnecting after a redeploy don't each cost everyone a remove and an add. Anyone who
+     * hasn't come back within the grace period is removed, together, in one diff.
+     * Only meaningful before anyone has joined.
+     * @param version the version the earlier roster had reached
+     * @param restored userId -&gt; username, in arrival order
+     * @param graceMillis how long players have to come back
+     */
+    public synchronized void restore(long version, Map<String, String> restored, long graceMillis) {
+        int[] handles = new int[restored.size()];
+        int n = 0;
+        for (Entry<String, String> player : restored.entrySet()) {
+            if (players.find(player.getKey()) < 0) {
+                int h = players.add(player.getKey(), player.getValue());
+                ensureCapacity(players.capacity());
+                link(h);
+                handles[n++] = h;
+            }
+        }
+        this.version = Math.max(this.version, version);
+        fullRendering = null;
+        whoRendering = null;
+        int count = n;
+        scheduler.schedule(() -> expire(handles, count), graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // check again on restored players, publishing the removal of any who are still not here.
+    private synchronized void expire(int[] handles, int count) {
+        for (int i = 0; i < count; i++) {
+            // a handle may have been given to someone else since, looking again does them no harm
+            if (players.prefix(handles[i]) != null) {
+                touch(handles[i]);
+            }
+        }
+    }
+
+    /**
+     * @return <code>player,&lt;userId&gt;,</code>, to route a message to just one player,
+     * built once for players in the room. Takes the roster's lock, so callers look it up
+     * once, as the player says hello, and keep it.
+     */
+    public synchronized String routingPrefix(String userId) {
+        int h = players.find(userId);
+        return h < 0 ? "player," + userId + "," : players.prefix(h);
+    }
+
+    /**
+     * @return <code>playerLocation,&lt;userId&gt;,</code>, to tell one player where they
+     * went, built once for players in the room. Takes the roster's lock, which is fine for
+     * the one /go that ends a player's visit.
+     */
+    public synchronized String locationPrefix(String userId) {
+        int h = players.find(userId);
+        return h < 0 ? "playerLocation," + userId + "," : players.locationPrefix(h);
+    }
+
+    /**
+     * Hand the full published roster, as a routed message for a single player, to be sent.
+     * @param routingPrefix the prefix of the player to send the roster to, see {@link #routingPrefix(String)}
+     * @param sender queues the message for the player's session, must not block
+     */
+    public synchronized void sendFullRoster(String routingPrefix, Consumer<String> sender) {
+        sender.accept(routingPrefix + fullRendering());
+    }
+
+    /** @return the published roster as a sentence for /who */
+    public synchronized String who() {
+        if (whoRendering == null) {
+            if (publishedCount == 0) {
+                whoRendering = "There is nobody here.";
+            } else {
+                StringBuilder sb = new StringBuilder("In the room: ");
+                for (int h = first; h >= 0; h = after[h]) {
+                    if (h != first) {
+                        sb.append(", ");
+                    }
+                    sb.append(players.username(h));
+                }
+                whoRendering = sb.toString();
+            }
+        }
+        return whoRendering;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized String fullRendering() {
+        if (fullRendering == null) {
+            JsonArrayBuilder everyone = Json.createArrayBuilder();
+            for (int h = first; h >= 0; h = after[h]) {
+                everyone.add(player(players.userId(h), players.username(h)));
+            }
+            fullRendering = Json.createObjectBuilder()
+                    .add(TYPE, PRESENCE)
+                    .add(VERSION, version)
+                    .add("full", true)
+                    .add("players", everyone)
+                    .build().toString();
+        }
+        return fullRendering;
+    }
+
+    private void touch(int h) {
+        if ((flags[h] & TOUCHED) == 0) {
+            flags[h] |= TOUCHED;
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = h;
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::publish, windowMillis.getAsLong(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // publish whatever has changed since the last publish, a player who came and went
+    // within the window produces nothing.
+    synchronized void publish() {
+        flushScheduled = false;
+        JsonArrayBuilder added = Json.createArrayBuilder();
+        JsonArrayBuilder removed = Json.createArrayBuilder();
+        boolean changed = false;
+        for (int i = 0; i < touchedCount; i++) {
+            int h = touched[i];
+            flags[h] &= ~TOUCHED;
+            boolean isLive = (flags[h] & LIVE) != 0;
+            boolean isPublished = (flags[h] & PUBLISHED) != 0;
+            if (isLive && !isPublished) {
+                link(h);
+                added.add(player(players.userId(h), players.username(h)));
+                changed = true;
+            } else if (!isLive && isPublished) {
+                unlink(h);
+                removed.add(players.userId(h));
+                changed = true;
+            }
+            if (!isLive) {
+                // nobody, room or clients, needs this player any more
+                owners[h] = null;
+                players.remove(h);
+            }
+        }
+        touchedCount = 0;
+        if (changed) {
+            version++;
+            fullRendering = null;
+            whoRendering = null;
+            String diff = "player,*," + Json.createObjectBuilder()
+                    .add(TYPE, PRESENCE)
+                    .add(VERSION, version)
+                    .add("added", added)
+                    .add("removed", removed)
+                    .build().toString();
+            try {
+                broadcaster.accept(diff);
+            } catch (RuntimeException e) {
+                System.out.println("Unable to publish presence update : " + e);
+            }
+        }
+    }
+
+    // add to the end of the published view
+    private void link(int h) {
+        flags[h] |= PUBLISHED;
+        before[h] = last;
+        after[h] = -1;
+        if (last >= 0) {
+            after[last] = h;
+        } else {
+            first = h;
+        }
+        last = h;
+        publishedCount++;
+    }
+
+    private void unlink(int h) {
+        flags[h] &= ~PUBLISHED;
+        if (before[h] >= 0) {
+            after[before[h]] = after[h];
+        } else {
+            first = after[h];
+        }
+        if (after[h] >= 0) {
+            before[after[h]] = before[h];
+        } else {
+            last = before[h];
+        }
+        publishedCount--;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > flags.length) {
+            int length = Math.max(capacity, flags.length * 2);
+            flags = Arrays.copyOf(flags, length);
+            owners = Arrays.copyOf(owners, length);
+            before = Arrays.copyOf(before, length);
+            after = Arrays.copyOf(after, length);
+        }
+    }
+
+    private static JsonObjectBuilder player(String userId, String username) {
+        return Json.createObjectBuilder().add("userId", userId).add("username", username);
+    }
+}
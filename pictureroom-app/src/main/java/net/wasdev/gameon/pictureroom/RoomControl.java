@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.websocket.Session;
+
+import net.wasdev.gameon.protocol.EventBuilder;
+import net.wasdev.gameon.protocol.OutboundQueue;
+import net.wasdev.gameon.protocol.SendMetrics;
+
+/**
+ * The room's {@link RoomControlMXBean}. Reads come straight from the room's live state,
+ * writes publish a new {@link RoomSettings}.
+ */
+public class RoomControl implements RoomControlMXBean {
+
+    static final String OBJECT_NAME = "net.wasdev.gameon.pictureroom:type=RoomControl";
+
+    private final Set<Session> sessions;
+    private final PresenceRoster presence;
+    private final PictureCatalog catalog;
+    private final LongSupplier bookmark;
+    private final ToIntFunction<Session> queueDepth;
+
+    /**
+     * @param sessions the room's open sessions
+     * @param presence who is in the room
+     * @param catalog the pictures
+     * @param bookmark the room's current bookmark
+     * @param queueDepth frames waiting to be sent to a session
+     */
+    public RoomControl(Set<Session> sessions, PresenceRoster presence, PictureCatalog catalog, LongSupplier bookmark,
+            ToIntFunction<Session> queueDepth) {
+        this.sessions = sessions;
+        this.presence = presence;
+        this.catalog = catalog;
+        this.bookmark = bookmark;
+        this.queueDepth = queueDepth;
+    }
+
+    /** Register with the platform MBean server, replacing any left behind by an earlier deploy. */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Unable to register room MBean : " + e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            System.out.println("Unable to unregister room MBean : " + e);
+        }
+    }
+
+    @Override
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public int getPlayerCount() {
+        return presence.size();
+    }
+
+    @Override
+    public long getBookmark() {
+        return bookmark.getAsLong();
+    }
+
+    @Override
+    public long getEventBookmark() {
+        return EventBuilder.lastBookmark();
+    }
+
+    @Override
+    public Map<String, Integer> getSessionQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (Session session : sessions) {
+            depths.put(session.getId(), queueDepth.applyAsInt(session));
+        }
+        return depths;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return OutboundQueue.getDropped();
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        return catalog.getSnapshot().getVersion();
+    }
+
+    @Override
+    public int getPictureCount() {
+        return catalog.getSnapshot().getPictures().size();
+    }
+
+    @Override
+    public long getCatalogBytes() {
+        long total = 0;
+        for (PictureRoomPicture picture : catalog.getSnapshot().getPictures().values()) {
+            total += picture.getJsonBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCatalogCompressedBytes() {
+        long total = 0;
+        for (PictureRoomPicture picture : catalog.getSnapshot().getPictures().values()) {
+            total += picture.getCompressedLength();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSends() {
+        return SendMetrics.getSends();
+    }
+
+    @Override
+    public long getPayloadBytes() {
+        return SendMetrics.getPayloadBytes();
+    }
+
+    @Override
+    public long getCpuNanosPerSend() {
+        return SendMetrics.getCpuNanosPerSend();
+    }
+
+    @Override
+    public long getMessagesHandled() {
+        return RoomMetrics.getMessagesHandled();
+    }
+
+    @Override
+    public long getTimeToFirstFastResponseMillis() {
+        long nanos = RoomMetrics.getTimeToFirstFastResponseNanos();
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public long getPresenceWindowMillis() {
+        return RoomSettings.current().getPresenceWindowMillis();
+    }
+
+    @Override
+    public void setPresenceWindowMillis(long millis) {
+        RoomSettings.update(s -> s.withPresenceWindowMillis(millis));
+    }
+
+    @Override
+    public long getPictureDebounceMillis() {
+        return RoomSettings.current().getPictureDebounceMillis();
+    }
+
+    @Override
+    public void setPictureDebounceMillis(long millis) {
+        RoomSettings.update(s -> s.withPictureDebounceMillis(millis));
+    }
+
+    @Override
+    public long getPingIntervalMillis() {
+        return RoomSettings.current().getPingIntervalMillis();
+    }
+
+    @Override
+    public void setPingIntervalMillis(long millis) {
+        RoomSettings.update(s -> s.withPingIntervalMillis(millis));
+    }
+
+    @Override
+    public long getIdleTimeoutMillis() {
+        return RoomSettings.current().getIdleTimeoutMillis();
+    }
+
+    @Override
+    public void setIdleTimeoutMillis(long millis) {
+        RoomSettings.update(s -> s.withIdleTimeoutMillis(millis));
+    }
+
+    @Override
+    public long getExitRefreshMillis() {
+        return RoomSettings.current().getExitRefreshMillis();
+    }
+
+    @Override
+    public void setExitRefreshMillis(long millis) {
+        RoomSettings.update(s -> s.withExitRefreshMillis(millis));
+    }
+
+    @Override
+    public long getDrainWindowMillis() {
+        return RoomSettings.current().getDrainWindowMillis();
+    }
+
+    @Override
+    public void setDrainWindowMillis(long millis) {
+        RoomSettings.update(s -> s.withDrainWindowMillis(millis));
+    }
+
+    @Override
+    public int getOutboundQueueLimit() {
+        return RoomSettings.current().getOutboundQueueLimit();
+    }
+
+    @Override
+    public void setOutboundQueueLimit(int limit) {
+        RoomSettings.update(s -> s.withOutboundQueueLimit(limit));
+    }
+
+    @Override
+    public long getSendTimeoutMillis() {
+        return RoomSettings.current().getSendTimeoutMillis();
+    }
+
+    @Override
+    public void setSendTimeoutMillis(long millis) {
+        RoomSettings.update(s -> s.withSendTimeoutMillis(millis));
+    }
+
+    @Override
+    public int getMessagesPerSecond() {
+        return RoomSettings.current().getMessagesPerSecond();
+    }
+
+    @Override
+    public void setMessagesPerSecond(int limit) {
+        RoomSettings.update(s -> s.withMessagesPerSecond(limit));
+    }
+
+    @Override
+    public String getLogLevel() {
+        return RoomSettings.current().getLogLevel().name();
+    }
+
+    @Override
+    public void setLogLevel(String level) {
+        RoomSettings.LogLevel value = RoomSettings.LogLevel.valueOf(level.trim().toUpperCase());
+        RoomSettings.update(s -> s.withLogLevel(value));
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.util.Map;
+
+/**
+ * Look inside the running room, and tune it, over JMX.
+ *
+ * Registered as <code>net.wasdev.gameon.pictureroom:type=RoomControl</code> when the app
+ * starts. Setters take effect straight away, and are forgotten on restart.
+ */
+public interface RoomControlMXBean {
+
+    /** @return number of open connections in the room */
+    int getSessionCount();
+
+    /** @return number of players in the room */
+    int getPlayerCount();
+
+    /** @return the bookmark most recently given to a room reply or exit */
+    long getBookmark();
+
+    /** @return the bookmark most recently given to an event */
+    long getEventBookmark();
+
+    /** @return frames waiting to be sent, by session id */
+    Map<String, Integer> getSessionQueueDepths();
+
+    /** @return frames dropped because a session's direct or broadcast lane was full */
+    long getDroppedFrames();
+
+    long getCatalogVersion();
+
+    int getPictureCount();
+
+    /** @return total size of the pictures as sent, in UTF-8 bytes */
+    long getCatalogBytes();
+
+    /** @return total size of the pictures once deflated, in bytes */
+    long getCatalogCompressedBytes();
+
+    /** @return messages sent */
+    long getSends();
+
+    /** @return UTF-8 bytes handed to the container */
+    long getPayloadBytes();
+
+    /** @return average cpu nanoseconds per send */
+    long getCpuNanosPerSend();
+
+    long getMessagesHandled();
+
+    /** @return milliseconds from the room opening to the first fast reply written, or -1 if there hasn't been one */
+    long getTimeToFirstFastResponseMillis();
+
+    long getPresenceWindowMillis();
+
+    void setPresenceWindowMillis(long millis);
+
+    long getPictureDebounceMillis();
+
+    void setPictureDebounceMillis(long millis);
+
+    long getPingIntervalMillis();
+
+    void setPingIntervalMillis(long millis);
+
+    long getIdleTimeoutMillis();
+
+    void setIdleTimeoutMillis(long millis);
+
+    long getExitRefreshMillis();
+
+    void setExitRefreshMillis(long millis);
+
+    long getDrainWindowMillis();
+
+    void setDrainWindowMillis(long millis);
+
+    int getOutboundQueueLimit();
+
+    void setOutboundQueueLimit(int limit);
+
+    long getSendTimeoutMillis();
+
+    void setSendTimeoutMillis(long millis);
+
+    /** @return most messages a session may send each second, 0 for no limit */
+    int getMessagesPerSecond();
+
+    void setMessagesPerSecond(int limit);
+
+    /** @return QUIET or INFO */
+    String getLogLevel();
+
+    void setLogLevel(String level);
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple process-wide counters for the room.
+ *
+ * The room deliberately has no metrics library, so values are kept in atomics, written
+ * to the log when something interesting happens, and readable by anything else in the app.
+ */
+public class RoomMetrics {
+
+    /** A reply written this soon after its message arrived counts as 'fast' for time-to-first-fast-response. */
+    private static final long FAST_RESPONSE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            RoomSettings.envLong("FAST_RESPONSE_MILLIS", 5));
+
+    // when the room was opened to players, until then there is nothing to time
+    private static volatile boolean open = false;
+    private static final AtomicLong openNanos = new AtomicLong();
+    private static final AtomicLong warmupNanos = new AtomicLong(-1);
+    private static final AtomicLong firstFastResponseNanos = new AtomicLong(-1);
+    private static final AtomicLong messagesHandled = new AtomicLong();
+
+    private RoomMetrics() {
+    }
+
+    /** Marks the room as open to players, once it is warmed up and registered with the map. */
+    public static void markOpen() {
+        openNanos.set(System.nanoTime());
+        open = true;
+    }
+
+    /**
+     * Records how long the startup warmup took.
+     * @param nanos duration of the warmup phase
+     */
+    public static void recordWarmup(long nanos) {
+        warmupNanos.set(nanos);
+        System.out.println("Room warmup completed in " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+    }
+
+    /** Records a message handled for a real (non-warmup) connection. */
+    public static void recordMessage() {
+        messagesHandled.incrementAndGet();
+    }
+
+    /**
+     * Records a reply written out to a real (non-warmup) connection.
+     * @param receivedNanos {@link System#nanoTime()} when the message it answers arrived
+     */
+    public static void recordReplyWritten(long receivedNanos) {
+        if (!open || firstFastResponseNanos.get() >= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - receivedNanos <= FAST_RESPONSE_NANOS) {
+            long sinceOpen = now - openNanos.get();
+            if (firstFastResponseNanos.compareAndSet(-1, sinceOpen)) {
+                System.out.println("Time to first fast response: "
+                        + TimeUnit.NANOSECONDS.toMillis(sinceOpen) + "ms after the room opened");
+            }
+        }
+    }
+
+    /** @return duration of the startup warmup in nanoseconds, or -1 if it has not run */
+    public static long getWarmupNanos() {
+        return warmupNanos.get();
+    }
+
+    /** @return nanoseconds from the room opening to the first fast reply written, or -1 if there has not been one */
+    public static long getTimeToFirstFastResponseNanos() {
+        return firstFastResponseNanos.get();
+    }
+
+    /** @return number of messages handled for real connections */
+    public static long getMessagesHandled() {
+        return messagesHandled.get();
+    }
+}
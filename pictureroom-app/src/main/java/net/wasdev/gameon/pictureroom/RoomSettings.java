@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * The room's tunable settings.
+ *
+ * Settings start out from the environment, and can be changed while the room is running
+ * (see {@link RoomControlMXBean}). Each change publishes a whole new immutable copy, so
+ * code on the message path reads one volatile reference and never takes a lock, and
+ * never sees half of a change.
+ */
+public final class RoomSettings {
+
+    public enum LogLevel {
+        /** Only problems. */
+        QUIET,
+        /** Connections, registration and commands, as the room has always logged. */
+        INFO
+    }
+
+    private static final AtomicReference<RoomSettings> current = new AtomicReference<>(fromEnvironment());
+
+    // only ever set on a new copy, before it is published
+    private long presenceWindowMillis;
+    private long pictureDebounceMillis;
+    private long pingIntervalMillis;
+    private long idleTimeoutMillis;
+    private long exitRefreshMillis;
+    private long drainWindowMillis;
+    private int outboundQueueLimit;
+    private long sendTimeoutMillis;
+    private int messagesPerSecond;
+    private LogLevel logLevel;
+
+    private RoomSettings() {
+    }
+
+    private RoomSettings copy() {
+        RoomSettings s = new RoomSettings();
+        s.presenceWindowMillis = presenceWindowMillis;
+        s.pictureDebounceMillis = pictureDebounceMillis;
+        s.pingIntervalMillis = pingIntervalMillis;
+        s.idleTimeoutMillis = idleTimeoutMillis;
+        s.exitRefreshMillis = exitRefreshMillis;
+        s.drainWindowMillis = drainWindowMillis;
+        s.outboundQueueLimit = outboundQueueLimit;
+        s.sendTimeoutMillis = sendTimeoutMillis;
+        s.messagesPerSecond = messagesPerSecond;
+        s.logLevel = logLevel;
+        return s;
+    }
+
+    private static RoomSettings fromEnvironment() {
+        LogLevel level = LogLevel.INFO;
+        String configuredLevel = System.getenv("LOG_LEVEL");
+        if (configuredLevel != null) {
+            try {
+                level = LogLevel.valueOf(configuredLevel.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Ignoring invalid value for LOG_LEVEL : " + configuredLevel);
+            }
+        }
+        RoomSettings s = new RoomSettings();
+        s.presenceWindowMillis = envLong("PRESENCE_WINDOW_MILLIS", 250);
+        s.pictureDebounceMillis = envLong("PICTURE_DEBOUNCE_MILLIS", 500);
+        s.pingIntervalMillis = envLong("PING_INTERVAL_MILLIS", 30000);
+        s.idleTimeoutMillis = envLong("IDLE_TIMEOUT_MILLIS", 90000);
+        s.exitRefreshMillis = envLong("EXIT_REFRESH_MILLIS", 60000);
+        s.drainWindowMillis = envLong("DRAIN_WINDOW_MILLIS", 5000);
+        s.outboundQueueLimit = (int) envLong("OUTBOUND_QUEUE_LIMIT", 256);
+        s.sendTimeoutMillis = envLong("SEND_TIMEOUT_MILLIS", 10000);
+        s.messagesPerSecond = (int) envLong("MESSAGES_PER_SECOND", 0);
+        s.logLevel = level;
+        return s;
+    }
+
+    /** @return the settings in force right now */
+    public static RoomSettings current() {
+        return current.get();
+    }
+
+    /**
+     * Change the settings, the change is applied to whatever is current at the time, so
+     * concurrent changes to different settings don't undo each other.
+     */
+    static RoomSettings update(UnaryOperator<RoomSettings> change) {
+        return current.updateAndGet(change);
+    }
+
+    static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + " : " + value);
+            return defaultValue;
+        }
+    }
+
+    /** @return how long presence changes are coalesced before being sent to everyone */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /** @return how long the picture directory must be quiet before changes are published */
+    public long getPictureDebounceMillis() {
+        return pictureDebounceMillis;
+    }
+
+    public long getPingIntervalMillis() {
+        return pingIntervalMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /** @return how long exits fetched from the map are trusted before being revalidated */
+    public long getExitRefreshMillis() {
+        return exitRefreshMillis;
+    }
+
+    /** @return how long shutting down spends closing connections, so players don't all reconnect at once */
+    public long getDrainWindowMillis() {
+        return drainWindowMillis;
+    }
+
+    /** @return most frames that may wait in each droppable lane of one session, see OutboundQueue */
+    public int getOutboundQueueLimit() {
+        return outboundQueueLimit;
+    }
+
+    /** @return how long a frame may take to send before the connection is given up on */
+    public long getSendTimeoutMillis() {
+        return sendTimeoutMillis;
+    }
+
+    /** @return most messages a session may send the room each second, 0 for no limit */
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    /** @return whether routine (not problem) messages should be logged */
+    public boolean isInfo() {
+        return logLevel == LogLevel.INFO;
+    }
+
+    RoomSettings withPresenceWindowMillis(long value) {
+        RoomSettings s = copy();
+        s.presenceWindowMillis = positive(value);
+        return s;
+    }
+
+    RoomSettings withPictureDebounceMillis(long value) {
+        RoomSettings s = copy();
+        s.pictureDebounceMillis = positive(value);
+        return s;
+    }
+
+    RoomSettings withPingIntervalMillis(long value) {
+        RoomSettings s = copy();
+        s.pingIntervalMillis = positive(value);
+        return s;
+    }
+
+    RoomSettings withIdleTimeoutMillis(long value) {
+        RoomSettings s = copy();
+        s.idleTimeoutMillis = positive(value);
+        return s;
+    }
+
+    RoomSettings withExitRefreshMillis(long value) {
+        RoomSettings s = copy();
+        s.exitRefreshMillis = positive(value);
+        return s;
+    }
+
+    RoomSettings withDrainWindowMillis(long value) {
+        RoomSettings s = copy();
+        s.drainWindowMillis = positive(value);
+        return s;
+    }
+
+    RoomSettings withOutboundQueueLimit(int value) {
+        RoomSettings s = copy();
+        s.outboundQueueLimit = (int) positive(value);
+        return s;
+    }
+
+    RoomSettings withSendTimeoutMillis(long value) {
+        RoomSettings s = copy();
+        s.sendTimeoutMillis = positive(value);
+        return s;
+    }
+
+    RoomSettings withMessagesPerSecond(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Must be 0 (no limit) or more : " + value);
+        }
+        RoomSettings s = copy();
+        s.messagesPerSecond = value;
+        return s;
+    }
+
+    RoomSettings withLogLevel(LogLevel value) {
+        RoomSettings s = copy();
+        s.logLevel = value;
+        return s;
+    }
+
+    private static long positive(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Must be greater than 0 : " + value);
+        }
+        return value;
+    }
+}
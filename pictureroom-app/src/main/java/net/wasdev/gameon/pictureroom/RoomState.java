@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+
+/**
+ * What one instance of the room hands on to the next across a redeploy: who clients
+ * were last told is in the room, and how far the bookmarks had got.
+ *
+ * Written as the room drains, read (and removed) as the next instance starts. A state
+ * that is too old to be of use is ignored, as by then everyone has reconnected anyway.
+ */
+public class RoomState {
+
+    /** How long after it was saved a state is still worth restoring. */
+    static final long MAX_AGE_MILLIS = 60000;
+
+    private final long savedAt;
+    private final long bookmark;
+    private final long presenceVersion;
+    private final Map<String, String> players;
+
+    /**
+     * @param savedAt wall clock time, in milliseconds
+     * @param bookmark highest bookmark given out
+     * @param presenceVersion version of the published roster
+     * @param players userId -&gt; username, in arrival order
+     */
+    public RoomState(long savedAt, long bookmark, long presenceVersion, Map<String, String> players) {
+        this.savedAt = savedAt;
+        this.bookmark = bookmark;
+        this.presenceVersion = presenceVersion;
+        this.players = players;
+    }
+
+    public long getSavedAt() {
+        return savedAt;
+    }
+
+    public long getBookmark() {
+        return bookmark;
+    }
+
+    public long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    public Map<String, String> getPlayers() {
+        return players;
+    }
+
+    /** Write the state, replacing any earlier one whole so a reader never sees half of it. */
+    public void save(Path file) throws IOException {
+        JsonArrayBuilder list = Json.createArrayBuilder();
+        for (Entry<String, String> player : players.entrySet()) {
+            list.add(Json.createArrayBuilder().add(player.getKey()).add(player.getValue()));
+        }
+        String json = Json.createObjectBuilder()
+                .add("savedAt", savedAt)
+                .add("bookmark", bookmark)
+                .add("presenceVersion", presenceVersion)
+                .add("players", list)
+                .build().toString();
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        try (Writer out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            out.write(json);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read, and remove, the state left by the previous instance.
+     * @param now wall clock time, in milliseconds
+     * @return the state, or null if there isn't one recent enough to use
+     */
+    public static RoomState take(Path file, long now) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            JsonObject json;
+            try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                json = Json.createReader(in).readObject();
+            } finally {
+                Files.delete(file);
+            }
+            long savedAt = json.getJsonNumber("savedAt").longValue();
+            if (now - savedAt > MAX_AGE_MILLIS) {
+                System.out.println("Ignoring room state saved at " + savedAt + ", it is too old");
+                return null;
+            }
+            // each player is [userId, username]
+            Map<String, String> players = new LinkedHashMap<>();
+            for (JsonArray player : json.getJsonArray("players").getValuesAs(JsonArray.class)) {
+                players.put(player.getString(0), player.getString(1));
+            }
+            return new RoomState(savedAt, json.getJsonNumber("bookmark").longValue(),
+                    json.getJsonNumber("presenceVersion").longValue(), Collections.unmodifiableMap(players));
+        } catch (IOException | JsonException | ClassCastException | NullPointerException | IndexOutOfBoundsException e) {
+            System.out.println("Unable to read room state from " + file + " : " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import net.wasdev.gameon.protocol.OutboundQueue;
+
+/**
+ * Drives the room's message handling against a synthetic session during startup, so the
+ * JSON provider lookup, class loading, JIT and picture reads are paid for before the
+ * first real player arrives rather than by them.
+ */
+public class RoomWarmup {
+
+    private static final String WARMUP_USERID = "warmup:pictureroom";
+    private static final String WARMUP_USERNAME = "warmup";
+
+    private final PictureRoom room;
+    private final List<String> objects;
+    private final int iterations;
+
+    public RoomWarmup(PictureRoom room, List<String> objects, int iterations) {
+        this.room = room;
+        this.objects = objects;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Run the warmup, any failure is logged and otherwise ignored, as a cold room is
+     * still a working room.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        Session session = createSyntheticSession();
+        String user = "\"" + PictureRoom.USERID + "\":\"" + WARMUP_USERID + "\",\""
+                + PictureRoom.USERNAME + "\":\"" + WARMUP_USERNAME + "\"";
+        try {
+            for (int i = 0; i < iterations; i++) {
+                session.getUserProperties().clear();
+                room.receiveMessage("roomHello,pictureRoom,{" + user + ",\"version\":1}", session, true);
+                room.receiveMessage(command(user, "/look"), session, true);
+                room.receiveMessage(command(user, "/who"), session, true);
+                for (String object : objects) {
+                    room.receiveMessage(command(user, "/examine " + object), session, true);
+                    room.receiveMessage(command(user, "/examine " + object.substring(0, 1)), session, true);
+                }
+                room.receiveMessage(command(user, "/go n"), session, true);
+                room.receiveMessage(command(user, "Hello from the warmup " + i), session, true);
+                room.receiveMessage("roomGoodbye,pictureRoom,{" + user + "}", session, true);
+            }
+        } catch (Exception e) {
+            System.out.println("Room warmup failed, continuing cold : " + e);
+        }
+        OutboundQueue.forget(session);
+        RoomMetrics.recordWarmup(System.nanoTime() - start);
+    }
+
+    private static String command(String user, String content) {
+        return "room,pictureRoom,{" + user + ",\"content\":\"" + content + "\"}";
+    }
+
+    /**
+     * Build a {@link Session} that is always open and quietly discards everything sent to it.
+     * A dynamic proxy keeps us from having to stub the whole of the websocket API by hand.
+     */
+    private static Session createSyntheticSession() {
+        Map<String, Object> userProperties = new HashMap<>();
+        RemoteEndpoint.Basic basic = proxy(RemoteEndpoint.Basic.class, (p, method, args) -> defaultValue(method));
+        // whole frames go out through the async remote, which here has always sent them already
+        RemoteEndpoint.Async async = proxy(RemoteEndpoint.Async.class, (p, method, args) -> {
+            if ("sendText".equals(method.getName()) && args.length == 2 && args[1] instanceof SendHandler) {
+                ((SendHandler) args[1]).onResult(new SendResult());
+                return null;
+            }
+            return defaultValue(method);
+        });
+        return proxy(Session.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getBasicRemote":
+                    return basic;
+                case "getAsyncRemote":
+                    return async;
+                case "getUserProperties":
+                    return userProperties;
+                case "isOpen":
+                    return Boolean.TRUE;
+                case "getId":
+                    return WARMUP_USERID;
+                // the session goes in and out of the room's session set, so needs an identity
+                case "equals":
+                    return p == args[0];
+                case "hashCode":
+                    return System.identityHashCode(p);
+                case "toString":
+                    return "Session[" + WARMUP_USERID + "]";
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(RoomWarmup.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javax.websocket.Session;
+
+/**
+ * Keeps an eye on every connection using one {@link TimerWheel}.
+ *
+ * Each tracked session has a single timer. When it fires, a session that has been heard
+ * from recently (any message or pong) is pinged and its timer set again; a session that
+ * has been quiet for longer than the idle timeout is reaped. Sessions found stale during
+ * a tick are handed to the reaper together, rather than one at a time.
+ */
+public class SessionLiveness {
+
+    private static final ByteBuffer PING = ByteBuffer.wrap(new byte[] { 'p', 'r' }).asReadOnlyBuffer();
+
+    private final TimerWheel wheel;
+    private final LongSupplier clock;
+    private final LongSupplier pingIntervalMillis;
+    private final LongSupplier idleTimeoutMillis;
+    private final Consumer<List<Session>> reaper;
+    private final ConcurrentHashMap<Session, State> states = new ConcurrentHashMap<>();
+
+    // stale sessions found while the wheel is ticking, reaped once it has finished
+    private final List<Session> stale = new ArrayList<>();
+    private Thread driver;
+
+    private static class State {
+        volatile long lastSeen;
+        TimerWheel.Timeout timeout;
+    }
+
+    /**
+     * @param wheel the wheel to schedule on
+     * @param clock the same clock (milliseconds) the wheel uses
+     * @param pingIntervalMillis how often to check on, and ping, each session
+     * @param idleTimeoutMillis how long a session can go unheard before it is reaped
+     * @param reaper closes and forgets a batch of stale sessions
+     */
+    public SessionLiveness(TimerWheel wheel, LongSupplier clock, LongSupplier pingIntervalMillis, LongSupplier idleTimeoutMillis,
+            Consumer<List<Session>> reaper) {
+        this.wheel = wheel;
+        this.clock = clock;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.reaper = reaper;
+    }
+
+    /** Start looking after a newly opened session. */
+    public void track(Session session) {
+        State state = new State();
+        state.lastSeen = clock.getAsLong();
+        states.put(session, state);
+        schedule(session, state);
+    }
+
+    /** Stop looking after a session, when it has closed. */
+    public void untrack(Session session) {
+        State state = states.remove(session);
+        if (state != null) {
+            synchronized (state) {
+                wheel.cancel(state.timeout);
+            }
+        }
+    }
+
+    /** Note that we've heard from the session, a message or a pong. */
+    public void seen(Session session) {
+        State state = states.get(session);
+        if (state != null) {
+            state.lastSeen = clock.getAsLong();
+        }
+    }
+
+    /**
+     * Advance the wheel and reap whatever went stale, used by the driver thread (and by
+     * anything driving the wheel with its own clock).
+     */
+    public void tick() {
+        wheel.advance();
+        List<Session> batch;
+        synchronized (stale) {
+            if (stale.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(stale);
+            stale.clear();
+        }
+        reaper.accept(batch);
+    }
+
+    /**
+     * Start a daemon thread that ticks every time the wheel does.
+     */
+    public synchronized void start() {
+        if (driver != null) {
+            return;
+        }
+        driver = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(wheel.getTickMillis());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tick();
+            }
+        }, "pictureroom-liveness");
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    public synchronized void stop() {
+        if (driver != null) {
+            driver.interrupt();
+            driver = null;
+        }
+    }
+
+    private void schedule(Session session, State state) {
+        synchronized (state) {
+            state.timeout = wheel.schedule(() -> check(session, state), pingIntervalMillis.getAsLong());
+        }
+    }
+
+    private void check(Session session, State state) {
+        if (states.get(session) != state) {
+            return; // untracked since the timer was set
+        }
+        if (!session.isOpen() || clock.getAsLong() - state.lastSeen > idleTimeoutMillis.getAsLong()) {
+            states.remove(session, state);
+            synchronized (stale) {
+                stale.add(session);
+            }
+            return;
+        }
+        try {
+            session.getAsyncRemote().sendPing(PING.duplicate());
+        } catch (IOException | RuntimeException e) {
+            // the idle timeout will deal with it if it really is broken
+        } finally {
+            schedule(session, state);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * A hashed timer wheel, one of these can look after the timers of every connection.
+ *
+ * Time is split into ticks, and the wheel into a fixed number of buckets. A timer goes in
+ * the bucket its deadline falls in, counting how many full turns of the wheel it still has
+ * to wait, so scheduling and cancelling are both constant time however many timers there
+ * are. Timers fire up to one tick late, which is fine for heartbeats and idle timeouts.
+ *
+ * The wheel does not own a thread or read the clock itself unless asked to, so it can be
+ * driven from a test with a clock under the test's control.
+ */
+public class TimerWheel {
+
+    /**
+     * A scheduled task, which can be cancelled until it has fired.
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private static class Bucket {
+        Timeout head;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.next = head;
+            if (head != null) {
+                head.previous = t;
+            }
+            head = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.previous != null) {
+                t.previous.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.previous = t.previous;
+            }
+            t.bucket = null;
+            t.previous = null;
+            t.next = null;
+        }
+    }
+
+    private final long tickMillis;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final LongSupplier clock;
+    private long tick;
+    private long lastTickTime;
+    private int size;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param clock current time in milliseconds
+     */
+    public TimerWheel(long tickMillis, int wheelSize, LongSupplier clock) {
+        int n = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.buckets = new Bucket[n];
+        for (int i = 0; i < n; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = n - 1;
+        this.clock = clock;
+        this.lastTickTime = clock.getAsLong();
+    }
+
+    /**
+     * Run a task after (at least) a delay.
+     * @return a handle for cancelling the task
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout t = new Timeout(task);
+        t.rounds = (ticks - 1) / buckets.length;
+        buckets[(int) ((tick + ticks) & mask)].add(t);
+        size++;
+        return t;
+    }
+
+    /**
+     * Cancel a task, if it hasn't already run.
+     * @return true if the task was cancelled
+     */
+    public synchronized boolean cancel(Timeout t) {
+        if (t == null || t.bucket == null) {
+            return false;
+        }
+        t.bucket.remove(t);
+        size--;
+        return true;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /** @return number of timers waiting to fire */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Move the wheel on to the clock's current time, running every task that has come due.
+     * Due tasks are collected first and run together outside the wheel's lock, so they
+     * can schedule or cancel timers themselves.
+     * @return number of tasks run
+     */
+    public int advance() {
+        List<Runnable> due = new ArrayList<>();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            while (now - lastTickTime >= tickMillis) {
+                lastTickTime += tickMillis;
+                tick++;
+                Bucket bucket = buckets[(int) (tick & mask)];
+                Timeout t = bucket.head;
+                while (t != null) {
+                    Timeout next = t.next;
+                    if (t.rounds <= 0) {
+                        bucket.remove(t);
+                        size--;
+                        due.add(t.task);
+                    } else {
+                        t.rounds--;
+                    }
+                    t = next;
+                }
+            }
+        }
+        for (Runnable task : due) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Timer task failed : " + e);
+            }
+        }
+        return due.size();
+    }
+}
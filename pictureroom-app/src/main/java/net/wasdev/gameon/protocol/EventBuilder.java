@@ -16,6 +16,7 @@
 package net.wasdev.gameon.protocol;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -37,18 +38,85 @@ public class EventBuilder {
     
     private static final AtomicInteger counter = new AtomicInteger(0);
 
-    private static void generateEvent(Session session, JsonObject content, String userID, boolean selfOnly, int bookmark)
-            throws IOException {
+    private static void generateEvent(Session session, JsonObject content, String routingPrefix, boolean selfOnly, int bookmark,
+            int fanOut) throws IOException {
         JsonObjectBuilder response = Json.createObjectBuilder();
         response.add("type", "event");
         response.add("content", content);
         response.add("bookmark", bookmark);
 
-        String msg = "player," + (selfOnly ? userID : "*") + "," + response.build().toString();
-        session.getBasicRemote().sendText(msg);
+        String msg = (selfOnly ? routingPrefix : "player,*,") + response.build().toString();
+        send(session, msg, fanOut);
+    }
+
+    /**
+     * Send an event with a large message to a single player, in parts, escaping the message
+     * as it goes, so neither the escaped message nor the whole event is ever held in full.
+     */
+    public static void streamedPlayerEvent(Session session, String senderId, String selfMessage) {
+        streamedPlayerEvent(session, "player," + senderId + ",", senderId, selfMessage);
+    }
+
+    /**
+     * As {@link #streamedPlayerEvent(Session, String, String)}, for callers that already
+     * hold the <code>player,&lt;userId&gt;,</code> routing prefix.
+     */
+    public static void streamedPlayerEvent(Session session, String routingPrefix, String senderId, String selfMessage) {
+        streamedPlayerEvent(session, routingPrefix, senderId, () -> new StringReader(selfMessage));
+    }
+
+    /**
+     * As {@link #streamedPlayerEvent(Session, String, String, String)}, with the message read
+     * from its source as it is sent, so it needn't be held in memory at all.
+     */
+    public static void streamedPlayerEvent(Session session, String routingPrefix, String senderId,
+            JsonChunks.Source selfMessage) {
+        String id = Json.createArrayBuilder().add(senderId).build().toString();
+        String head = routingPrefix + "{\"type\":\"event\",\"content\":{"
+                + id.substring(1, id.length() - 1) + ":";
+        String tail = "},\"bookmark\":" + counter.incrementAndGet() + "}";
+        OutboundQueue.send(session, new OutboundQueue.Frame(new JsonChunks(head, selfMessage, tail)), OutboundQueue.Lane.DIRECT);
+    }
+
+    /** Carry on giving out bookmarks from where an earlier instance of the room left off. */
+    public static void resumeBookmarks(int from) {
+        counter.accumulateAndGet(from, Math::max);
+    }
+
+    /** @return the most recent bookmark given to an event */
+    public static int lastBookmark() {
+        return counter.get();
+    }
+
+    public static void send(Session session, String msg) {
+        send(session, msg, 1);
+    }
+
+    public static void send(Session session, String msg, int fanOut) {
+        send(session, msg, fanOut, OutboundQueue.Lane.of(msg));
+    }
+
+    /**
+     * Every frame the room sends goes through here. The frame is queued in its lane and
+     * written out by one of the outbound senders, see {@link OutboundQueue}; a connection
+     * that fails is closed by the sender.
+     * @param fanOut how many sessions this same message is being sent to
+     * @param lane how urgent the frame is
+     */
+    public static void send(Session session, String msg, int fanOut, OutboundQueue.Lane lane) {
+        OutboundQueue.send(session, new OutboundQueue.Frame(msg, fanOut), lane);
     }
 
     public static void playerEvent(Collection<Session> activeSessions, String senderId, String selfMessage, String othersMessage) {
+        routedPlayerEvent(activeSessions, "player," + senderId + ",", senderId, selfMessage, othersMessage);
+    }
+
+    /**
+     * As {@link #playerEvent(Collection, String, String, String)}, for callers that already
+     * hold the <code>player,&lt;userId&gt;,</code> routing prefix.
+     */
+    public static void routedPlayerEvent(Collection<Session> activeSessions, String routingPrefix, String senderId,
+            String selfMessage, String othersMessage) {
         // System.out.println("Player message :: from("+senderId+")
         // onlyForSelf("+String.valueOf(selfMessage)+")
         // others("+String.valueOf(othersMessage)+")");
@@ -65,14 +133,14 @@ public class EventBuilder {
         int count = counter.incrementAndGet();
         for (Session session : activeSessions) {
             try {
-                generateEvent(session, json, senderId, selfOnly, count);
+                generateEvent(session, json, routingPrefix, selfOnly, count, activeSessions.size());
             } catch (IOException io) {
                 throw new RuntimeException(io);
             }
         }
     }
 
-    private static void generateRoomEvent(Session session, JsonObject content, int bookmark) throws IOException {
+    private static void generateRoomEvent(Session session, JsonObject content, int bookmark, int fanOut) throws IOException {
         JsonObjectBuilder response = Json.createObjectBuilder();
         response.add("type", "event");
         response.add("content", content);
@@ -80,7 +148,7 @@ public class EventBuilder {
 
         String msg = "player,*," + response.build().toString();
 
-        session.getBasicRemote().sendText(msg);
+        send(session, msg, fanOut);
     }
 
     public static void roomEvent(Collection<Session> activeSessions, String s) {
@@ -91,7 +159,7 @@ public class EventBuilder {
         int count = counter.incrementAndGet();
         for (Session session : activeSessions) {
             try {
-                generateRoomEvent(session, json, count);
+                generateRoomEvent(session, json, count, activeSessions.size());
             } catch (IOException io) {
                 throw new RuntimeException(io);
             }
@@ -111,17 +179,23 @@ public class EventBuilder {
         content.add("bookmark", counter.incrementAndGet());
         JsonObject json = content.build();
         for (Session session : activeSessions) {
-            try {
-                String cmsg = "player,*," + json.toString();
-                session.getBasicRemote().sendText(cmsg);
-            } catch (IOException io) {
-                throw new RuntimeException(io);
-            }
+            String cmsg = "player,*," + json.toString();
+            send(session, cmsg, activeSessions.size());
         }
     }
 
     public static void locationEvent(Collection<Session> activeSessions, String senderId, String roomId, String roomName, String roomDescription, Map<String,String> exits,
             List<String> objects, List<String> inventory, Map<String,String> commands) {
+        cachedLocationEvent(activeSessions, senderId,
+                renderLocation(roomId, roomName, roomDescription, exits, objects, inventory, commands));
+    }
+
+    /**
+     * Render the parts of a location event that don't change from one send to the next, for
+     * use with {@link #cachedLocationEvent(Collection, String, String)}.
+     */
+    public static String renderLocation(String roomId, String roomName, String roomDescription, Map<String,String> exits,
+            List<String> objects, List<String> inventory, Map<String,String> commands) {
         JsonObjectBuilder content = Json.createObjectBuilder();
         content.add("type", LOCATION);
         content.add(NAME, roomId);
@@ -151,16 +225,25 @@ public class EventBuilder {
             objs.add(o);
         }
         content.add("objects", objs.build());
-        content.add("bookmark", counter.incrementAndGet());
 
-        JsonObject json = content.build();
+        // leave the object open, the bookmark is added per send.
+        String json = content.build().toString();
+        return json.substring(0, json.length() - 1);
+    }
+
+    public static void cachedLocationEvent(Collection<Session> activeSessions, String senderId, String renderedLocation) {
+        routedLocationEvent(activeSessions, "player," + senderId + ",", renderedLocation);
+    }
+
+    /**
+     * As {@link #cachedLocationEvent(Collection, String, String)}, for callers that already
+     * hold the <code>player,&lt;userId&gt;,</code> routing prefix.
+     */
+    public static void routedLocationEvent(Collection<Session> activeSessions, String routingPrefix, String renderedLocation) {
+        String json = renderedLocation + ",\"bookmark\":" + counter.incrementAndGet() + "}";
         for (Session session : activeSessions) {
-            try {
-                String lmsg = "player," + senderId + "," + json.toString();
-                session.getBasicRemote().sendText(lmsg);
-            } catch (IOException io) {
-                throw new RuntimeException(io);
-            }
+            String lmsg = routingPrefix + json;
+            send(session, lmsg, activeSessions.size());
         }
     }
 
@@ -172,12 +255,8 @@ public class EventBuilder {
         content.add("bookmark", counter.incrementAndGet());
         JsonObject json = content.build();
         for (Session session : activeSessions) {
-            try {
-                String emsg = "playerLocation," + senderId + "," + json.toString();
-                session.getBasicRemote().sendText(emsg);
-            } catch (IOException io) {
-                throw new RuntimeException(io);
-            }
+            String emsg = "playerLocation," + senderId + "," + json.toString();
+            send(session, emsg, activeSessions.size());
         }
     }
 
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * A message with a (possibly large) text in the middle, sent as a json string, handed out a
+ * chunk at a time with the text escaped as each chunk is made. The text is read from its
+ * {@link Source} as the chunks are made too, so however big it is, neither the text nor its
+ * escaped copy is ever held whole, each chunk is about {@link #CHUNK_SIZE} characters.
+ *
+ * Each instance can be read through once, and should be closed if it isn't read to the end.
+ */
+public class JsonChunks implements Closeable {
+
+    public static final int CHUNK_SIZE = 4096;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Where the text comes from, opened when the first chunk is made. */
+    public interface Source {
+        Reader open() throws IOException;
+    }
+
+    private final String head;
+    private final Source source;
+    private final String tail;
+    private final int chunkSize;
+    private final StringBuilder chunk;
+    private final char[] buffer;
+    private Reader reader;
+    // what's left of the buffer is buffer[index..count)
+    private int index = 0;
+    private int count = 0;
+    private boolean started = false;
+    private boolean done = false;
+
+    /**
+     * @param head sent as is, before the text
+     * @param text sent as a quoted, escaped json string
+     * @param tail sent as is, after the text
+     */
+    public JsonChunks(String head, String text, String tail) {
+        this(head, () -> new StringReader(text), tail);
+    }
+
+    /**
+     * @param head sent as is, before the text
+     * @param text read as it is sent, as a quoted, escaped json string
+     * @param tail sent as is, after the text
+     */
+    public JsonChunks(String head, Source text, String tail) {
+        this(head, text, tail, CHUNK_SIZE);
+    }
+
+    JsonChunks(String head, Source text, String tail, int chunkSize) {
+        this.head = head;
+        this.source = text;
+        this.tail = tail;
+        this.chunkSize = chunkSize;
+        this.chunk = new StringBuilder(chunkSize + 8);
+        this.buffer = new char[Math.min(chunkSize, 1024)];
+    }
+
+    public boolean hasNext() {
+        return !done;
+    }
+
+    /**
+     * If the text can't be read, it is cut short there: the message still ends properly, so
+     * the player sees what was read and the connection is left alone.
+     *
+     * @return the next chunk, check {@link #hasNext()} afterwards to see if it was the last
+     */
+    public String next() {
+        chunk.setLength(0);
+        if (!started) {
+            started = true;
+            chunk.append(head).append('"');
+            try {
+                reader = source.open();
+            } catch (IOException e) {
+                System.out.println("Error reading message text : " + e.getMessage());
+            }
+        }
+        char last = 0;
+        while (chunk.length() < chunkSize && more()) {
+            last = buffer[index++];
+            escape(last, chunk);
+        }
+        // keep surrogate pairs together, a chunk is encoded on its own
+        if (Character.isHighSurrogate(last) && more()) {
+            escape(buffer[index++], chunk);
+        }
+        if (!more()) {
+            close();
+            chunk.append('"').append(tail);
+            done = true;
+        }
+        return chunk.toString();
+    }
+
+    /** Closes the text's reader, if it is still open. */
+    @Override
+    public void close() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing more is read from it
+            }
+            reader = null;
+        }
+    }
+
+    // true while there is text left in the buffer, refilling it as needed
+    private boolean more() {
+        if (index < count) {
+            return true;
+        }
+        if (reader == null) {
+            return false;
+        }
+        try {
+            int read;
+            do {
+                read = reader.read(buffer);
+            } while (read == 0);
+            if (read > 0) {
+                index = 0;
+                count = read;
+                return true;
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading message text : " + e.getMessage());
+        }
+        close();
+        return false;
+    }
+
+    private static void escape(char c, StringBuilder out) {
+        switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\b':
+                out.append("\\b");
+                break;
+            case '\f':
+                out.append("\\f");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                } else {
+                    out.append(c);
+                }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * Frames waiting to be sent to one session, in priority lanes.
+ *
+ * Nobody waits on a send. Frames are queued, and each session has at most one frame on its
+ * way out at a time, handed to the container's async remote. When it has gone the next is
+ * taken, highest lane first, so a /go reply waits behind at most one frame, not behind a
+ * chat flood, and a session that is slow to take its frames (or has stopped taking them)
+ * holds up only itself. Sends that don't complete within the send timeout fail, and the
+ * connection is closed. Frames within a lane keep their order.
+ *
+ * Streamed replies (see {@link JsonChunks}) can only be sent in parts with blocking sends,
+ * so they are written on a few threads of their own, with a watchdog that closes the
+ * connection if a reply takes longer than the send timeout. If those threads are all busy
+ * and {@link #STREAM_BACKLOG} replies are already waiting, the reply is dropped.
+ *
+ * The direct and broadcast lanes are bounded, when one is full its oldest frame is dropped
+ * to make room. The control lane is never dropped from.
+ */
+public class OutboundQueue {
+
+    public enum Lane {
+        /** Protocol traffic: acks, playerLocation, presence. */
+        CONTROL,
+        /** Replies to one player. */
+        DIRECT,
+        /** Chat and events for everyone. */
+        BROADCAST;
+
+        /** @return the lane a message belongs in, going by how it is routed */
+        public static Lane of(String message) {
+            if (message.startsWith("player,*,")) {
+                return BROADCAST;
+            }
+            if (message.startsWith("player,")) {
+                return DIRECT;
+            }
+            return CONTROL;
+        }
+    }
+
+    // either a whole message, or one to be sent in parts
+    static class Frame {
+        final String message;
+        final JsonChunks chunks;
+        final int fanOut;
+        // when the message this replies to arrived, 0 if it isn't a reply
+        final long received = handling.get()[0];
+
+        Frame(String message, int fanOut) {
+            this.message = message;
+            this.chunks = null;
+            this.fanOut = fanOut;
+        }
+
+        Frame(JsonChunks chunks) {
+            this.message = null;
+            this.chunks = chunks;
+            this.fanOut = 1;
+        }
+    }
+
+    /** Most streamed replies waiting for a thread to write them, across every session. */
+    static final int STREAM_BACKLOG = 64;
+
+    private static final ConcurrentHashMap<Session, OutboundQueue> queues = new ConcurrentHashMap<>();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile IntSupplier limit = () -> 256;
+    private static volatile LongSupplier sendTimeout = () -> 10000;
+    private static volatile LongConsumer replyListener = received -> { };
+    // when the message being handled on this thread arrived
+    private static final ThreadLocal<long[]> handling = ThreadLocal.withInitial(() -> new long[1]);
+
+    // idle threads go away, so a room that has been undeployed doesn't leave threads behind
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor streamers;
+    private static final ScheduledThreadPoolExecutor watchdog;
+    static {
+        int size = Math.max(2, Runtime.getRuntime().availableProcessors());
+        streamers = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(STREAM_BACKLOG), OutboundQueue::newThread);
+        streamers.allowCoreThreadTimeOut(true);
+        watchdog = new ScheduledThreadPoolExecutor(1, OutboundQueue::newThread);
+        watchdog.setKeepAliveTime(30, TimeUnit.SECONDS);
+        watchdog.allowCoreThreadTimeOut(true);
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Session session;
+    private final ArrayDeque<Frame> control = new ArrayDeque<>();
+    private final ArrayDeque<Frame> direct = new ArrayDeque<>();
+    private final ArrayDeque<Frame> broadcast = new ArrayDeque<>();
+    // a frame is on its way out, whoever set this sends the next one
+    private boolean busy = false;
+
+    private OutboundQueue(Session session) {
+        this.session = session;
+    }
+
+    /** Queue a frame for the session, it is sent once those ahead of it have gone. */
+    static void send(Session session, Frame frame, Lane lane) {
+        OutboundQueue queue = queues.computeIfAbsent(session, OutboundQueue::new);
+        if (queue.offer(frame, lane)) {
+            queue.pump();
+        }
+    }
+
+    /** The session has gone, stop keeping a queue for it. Anything already queued is still sent. */
+    public static void forget(Session session) {
+        queues.remove(session);
+    }
+
+    /** @return frames waiting to be sent to the session */
+    public static int depth(Session session) {
+        OutboundQueue queue = queues.get(session);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /** @param limit most frames the direct and broadcast lanes of a session may each hold */
+    public static void setLimit(IntSupplier limit) {
+        OutboundQueue.limit = limit;
+    }
+
+    /** @param timeout milliseconds a frame may take to send before the connection is given up on */
+    public static void setSendTimeout(LongSupplier timeout) {
+        OutboundQueue.sendTimeout = timeout;
+    }
+
+    /**
+     * Frames queued on this thread from now until {@link #handled()} are replies to a message
+     * that arrived at receivedNanos, and the reply listener is told when each is written.
+     */
+    public static void handling(long receivedNanos) {
+        handling.get()[0] = receivedNanos;
+    }
+
+    /** The message this thread was handling is done with. */
+    public static void handled() {
+        handling.get()[0] = 0;
+    }
+
+    /** @param listener given, as each reply is written out, the {@link System#nanoTime()} its message arrived */
+    public static void setReplyListener(LongConsumer listener) {
+        OutboundQueue.replyListener = listener;
+    }
+
+    /** @return frames dropped from full lanes, and streamed replies there was no room for, across every session */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Send frames until one is left in flight, or there are none left. Whole frames the
+     * container sends straight away (their handler runs before sendText returns) are
+     * followed here, rather than from the handler, so the stack doesn't grow with the queue.
+     */
+    private void pump() {
+        for (Frame frame = poll(); frame != null; frame = poll()) {
+            if (!session.isOpen()) {
+                abandon();
+                queues.remove(session, this);
+                return;
+            }
+            if (frame.chunks != null) {
+                if (stream(frame)) {
+                    return;
+                }
+            } else if (!send(frame)) {
+                return;
+            }
+        }
+    }
+
+    /** @return true if the frame has already gone and the next can be sent, false if it is in flight */
+    private boolean send(Frame frame) {
+        InFlight sending = new InFlight(frame);
+        long cpu = SendMetrics.startSend();
+        try {
+            RemoteEndpoint.Async remote = session.getAsyncRemote();
+            remote.setSendTimeout(sendTimeout.getAsLong());
+            remote.sendText(frame.message, sending);
+        } catch (RuntimeException e) {
+            fail(e);
+            return false;
+        }
+        SendMetrics.sendCpu(cpu);
+        return sending.returned();
+    }
+
+    // a whole frame, from sendText to its handler
+    private class InFlight implements SendHandler {
+        private final Frame frame;
+        private final RoomEvents.SendEvent event = RoomEvents.beginSend();
+        // 0 while sendText hasn't returned nor the handler run, then whichever came first
+        private final AtomicInteger state = new AtomicInteger();
+        private static final int RETURNED = 1;
+        private static final int HANDLED = 2;
+        private volatile boolean sent = false;
+
+        InFlight(Frame frame) {
+            this.frame = frame;
+        }
+
+        // sendText has returned, true if the handler already ran, and the frame went
+        boolean returned() {
+            return !state.compareAndSet(0, RETURNED) && sent;
+        }
+
+        @Override
+        public void onResult(SendResult result) {
+            boolean inline = state.compareAndSet(0, HANDLED);
+            if (!result.isOK()) {
+                fail(result.getException());
+                return;
+            }
+            SendMetrics.sent(SendMetrics.utf8Length(frame.message));
+            RoomEvents.endSend(event, frame.message.length(), frame.fanOut);
+            written(frame);
+            sent = true;
+            if (!inline) {
+                pump();
+            }
+        }
+    }
+
+    /** @return true if the reply was handed to a streamer, which sends whatever follows it */
+    private boolean stream(Frame frame) {
+        try {
+            streamers.execute(() -> {
+                if (write(frame.chunks)) {
+                    written(frame);
+                    pump();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            frame.chunks.close();
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    private static void written(Frame frame) {
+        if (frame.received != 0) {
+            replyListener.accept(frame.received);
+        }
+    }
+
+    /**
+     * Queue a frame.
+     * @return true if the caller should now send it, as nothing is in flight
+     */
+    synchronized boolean offer(Frame frame, Lane lane) {
+        ArrayDeque<Frame> queue = lane == Lane.CONTROL ? control : lane == Lane.DIRECT ? direct : broadcast;
+        if (lane != Lane.CONTROL && queue.size() >= limit.getAsInt()) {
+            queue.poll();
+            dropped.incrementAndGet();
+        }
+        queue.add(frame);
+        if (busy) {
+            return false;
+        }
+        busy = true;
+        return true;
+    }
+
+    /** @return the next frame to send, or null (and nothing is in flight any more) if there are none */
+    synchronized Frame poll() {
+        Frame next = control.poll();
+        if (next == null) {
+            next = direct.poll();
+        }
+        if (next == null) {
+            next = broadcast.poll();
+        }
+        if (next == null) {
+            busy = false;
+        }
+        return next;
+    }
+
+    /** The connection has failed, nothing queued will get through. */
+    synchronized void abandon() {
+        control.clear();
+        direct.clear();
+        broadcast.clear();
+        busy = false;
+    }
+
+    synchronized int size() {
+        return control.size() + direct.size() + broadcast.size();
+    }
+
+    /**
+     * Send a reply as partial frames, which the container sends as one websocket message.
+     * @return true if it was all sent
+     */
+    private boolean write(JsonChunks chunks) {
+        RoomEvents.SendEvent event = RoomEvents.beginSend();
+        long cpu = SendMetrics.startSend();
+        long bytes = 0;
+        int length = 0;
+        // closing the connection is what gets a stuck blocking send to give up
+        ScheduledFuture<?> stuck = watchdog.schedule(() -> fail(new IOException("Timed out streaming a reply")),
+                sendTimeout.getAsLong(), TimeUnit.MILLISECONDS);
+        try {
+            RemoteEndpoint.Basic remote = session.getBasicRemote();
+            while (chunks.hasNext()) {
+                String chunk = chunks.next();
+                remote.sendText(chunk, !chunks.hasNext());
+                bytes += SendMetrics.utf8Length(chunk);
+                length += chunk.length();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return false;
+        } finally {
+            stuck.cancel(false);
+            chunks.close();
+        }
+        SendMetrics.endSend(bytes, cpu);
+        RoomEvents.endSend(event, length, 1);
+        return true;
+    }
+
+    // the connection is in a bad state, nothing else queued will get through
+    private void fail(Throwable e) {
+        abandon();
+        if (!session.isOpen()) {
+            // already closed, by us or the client
+            queues.remove(session, this);
+            return;
+        }
+        System.out.println("Unexpected condition writing message: " + e);
+        close(new CloseReason(CloseCodes.UNEXPECTED_CONDITION, trimReason(String.valueOf(e))));
+    }
+
+    private void close(CloseReason reason) {
+        queues.remove(session, this);
+        try {
+            if (session.isOpen()) {
+                session.close(reason);
+            }
+        } catch (IOException e) {
+            // it's going anyway
+        }
+    }
+
+    // CloseReason text is limited to 123 characters
+    private static String trimReason(String message) {
+        return message.length() > 123 ? message.substring(0, 123) : message;
+    }
+
+    private static Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "pictureroom-outbound-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events covering a message's trip through the room: the whole message,
+ * parsing it, running the command, and each frame sent. Picture reads (which only happen
+ * when the catalog changes) get their own event.
+ *
+ * Not every JVM the room runs on has a flight recorder, so the events are only ever
+ * created through the methods here, which hand back null when there is no recorder.
+ * Everything else treats a null event as "not recording".
+ */
+public class RoomEvents {
+
+    public static final String PREFIX = "net.wasdev.gameon.pictureroom.";
+
+    /** Whether flight recorder events can be used on this JVM at all. */
+    public static final boolean AVAILABLE = isAvailable();
+
+    private RoomEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return jdk.jfr.FlightRecorder.isAvailable();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Name(PREFIX + "Message")
+    @Label("Room Message")
+    @Description("A message from the mediator, from arrival until the room has finished with it")
+    @Category({ "Game On!", "Picture Room" })
+    @StackTrace(false)
+    public static class MessageEvent extends Event {
+        @Label("Routing")
+        String routing;
+        @Label("Verb")
+        String verb;
+        @Label("Payload Size")
+        int payloadSize;
+        @Label("Bookmark")
+        long bookmark;
+    }
+
+    @Name(PREFIX + "Parse")
+    @Label("Parse Message")
+    @Description("Splitting the routing from a message and parsing its json")
+    @Category({ "Game On!", "Picture Room" })
+    @StackTrace(false)
+    public static class ParseEvent extends Event {
+        @Label("Routing")
+        String routing;
+        @Label("Payload Size")
+        int payloadSize;
+    }
+
+    @Name(PREFIX + "Command")
+    @Label("Run Command")
+    @Description("Acting on a hello, goodbye or room command, including sending the replies")
+    @Category({ "Game On!", "Picture Room" })
+    @StackTrace(false)
+    public static class CommandEvent extends Event {
+        @Label("Routing")
+        String routing;
+        @Label("Verb")
+        String verb;
+        @Label("Bookmark")
+        long bookmark;
+    }
+
+    @Name(PREFIX + "Send")
+    @Label("Send Frame")
+    @Description("One blocking send of a text frame to one session")
+    @Category({ "Game On!", "Picture Room" })
+    @StackTrace(false)
+    public static class SendEvent extends Event {
+        @Label("Payload Size")
+        int payloadSize;
+        @Label("Fan Out")
+        @Description("Number of sessions the same message is being sent to")
+        int fanOut;
+    }
+
+    @Name(PREFIX + "PictureLoad")
+    @Label("Load Picture")
+    @Description("Reading a picture description from the war or the picture directory")
+    @Category({ "Game On!", "Picture Room" })
+    @StackTrace(false)
+    public static class PictureLoadEvent extends Event {
+        @Label("Picture")
+        String picture;
+        @Label("Size")
+        int size;
+    }
+
+    public static MessageEvent beginMessage() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        MessageEvent event = new MessageEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endMessage(MessageEvent event, String routing, String verb, int payloadSize, long bookmark) {
+        if (event != null && event.shouldCommit()) {
+            event.routing = routing;
+            event.verb = verb;
+            event.payloadSize = payloadSize;
+            event.bookmark = bookmark;
+            event.commit();
+        }
+    }
+
+    public static ParseEvent beginParse() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endParse(ParseEvent event, String routing, int payloadSize) {
+        if (event != null && event.shouldCommit()) {
+            event.routing = routing;
+            event.payloadSize = payloadSize;
+            event.commit();
+        }
+    }
+
+    public static CommandEvent beginCommand() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endCommand(CommandEvent event, String routing, String verb, long bookmark) {
+        if (event != null && event.shouldCommit()) {
+            event.routing = routing;
+            event.verb = verb;
+            event.bookmark = bookmark;
+            event.commit();
+        }
+    }
+
+    public static SendEvent beginSend() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        SendEvent event = new SendEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endSend(SendEvent event, int payloadSize, int fanOut) {
+        if (event != null && event.shouldCommit()) {
+            event.payloadSize = payloadSize;
+            event.fanOut = fanOut;
+            event.commit();
+        }
+    }
+
+    public static PictureLoadEvent beginPictureLoad() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        PictureLoadEvent event = new PictureLoadEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endPictureLoad(PictureLoadEvent event, String picture, int size) {
+        if (event != null && event.shouldCommit()) {
+            event.picture = picture;
+            event.size = size;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what is sent, and the cpu it takes to send it.
+ *
+ * Payload bytes are the UTF-8 size of the text handed to the container. CPU time covers the
+ * whole send call on the sending thread.
+ *
+ * Liberty's websocket-1.1 feature installs no extensions, so permessage-deflate is never
+ * negotiated and everything goes out as it is counted here. What compression would save is
+ * estimated from the pictures instead, see RoomControlMXBean.getCatalogCompressedBytes.
+ */
+public class SendMetrics {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported()
+            && threads.isThreadCpuTimeEnabled();
+
+    private static final AtomicLong sends = new AtomicLong();
+    private static final AtomicLong payloadBytes = new AtomicLong();
+    private static final AtomicLong cpuNanos = new AtomicLong();
+
+    private SendMetrics() {
+    }
+
+    /** @return the current thread's cpu time, or 0 if the jvm can't tell us */
+    public static long startSend() {
+        return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Record a completed send.
+     * @param payloadBytes UTF-8 size of the message, or of all its parts together
+     * @param cpuStart value returned from {@link #startSend()} before sending
+     */
+    public static void endSend(long payloadBytes, long cpuStart) {
+        sendCpu(cpuStart);
+        sent(payloadBytes);
+    }
+
+    /**
+     * Record the cpu an async send took on the thread that made it. Its handler may run on
+     * another thread, so the send itself is recorded from there, with {@link #sent(long)}.
+     * @param cpuStart value returned from {@link #startSend()} before sending
+     */
+    public static void sendCpu(long cpuStart) {
+        if (cpuTimeSupported) {
+            cpuNanos.addAndGet(threads.getCurrentThreadCpuTime() - cpuStart);
+        }
+    }
+
+    /** @param payloadBytes UTF-8 size of a message that has been sent */
+    public static void sent(long payloadBytes) {
+        sends.incrementAndGet();
+        SendMetrics.payloadBytes.addAndGet(payloadBytes);
+    }
+
+    public static long getSends() {
+        return sends.get();
+    }
+
+    public static long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    /** @return average cpu nanoseconds per send, or 0 if nothing has been sent */
+    public static long getCpuNanosPerSend() {
+        long count = sends.get();
+        return count == 0 ? 0 : cpuNanos.get() / count;
+    }
+
+    static long utf8Length(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the cache against a stand-in map service, which serves the site with an ETag and
+ * answers a matching If-None-Match with a 304.
+ */
+public class ExitCacheTest {
+
+    private static final String SITE_V1 = "{\"exits\":{\"N\":{\"name\":\"north\",\"fullName\":\"The North Room\"},"
+            + "\"S\":{\"name\":\"south\",\"fullName\":\"The South Room\",\"door\":\"A green door\"}}}";
+    private static final String SITE_V2 = "{\"exits\":{\"E\":{\"name\":\"east\",\"fullName\":\"The East Room\"}}}";
+
+    private HttpServer server;
+    private final AtomicLong now = new AtomicLong(1000);
+    private final ExitCache cache = new ExitCache(() -> 60000, now::get);
+
+    // what the stand-in serves, and what it was asked
+    private volatile String site = SITE_V1;
+    private volatile String etag = "\"v1\"";
+    private volatile int status = 200;
+    private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void startMap() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/map/v1/sites/", this::serve);
+        server.start();
+        cache.setSiteUrl("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+                + "/map/v1/sites/room1");
+    }
+
+    @After
+    public void stopMap() {
+        server.stop(0);
+        cache.stop();
+    }
+
+    @Test
+    public void fetchesThenRevalidates() {
+        cache.refresh();
+        Map<String, ExitCache.Exit> exits = cache.getExits();
+        assertEquals(1, cache.getVersion());
+        assertEquals("The North Room", exits.get("n").getFullName());
+        assertNull(exits.get("n").getDoor());
+        assertEquals("A green door", exits.get("s").getDoor());
+        assertNull("first fetch is unconditional", ifNoneMatch.get(0));
+
+        cache.refresh();
+        assertEquals("\"v1\"", ifNoneMatch.get(1));
+        // a 304 keeps what we had, version and all
+        assertEquals(1, cache.getVersion());
+        assertSame(exits, cache.getExits());
+    }
+
+    @Test
+    public void changedSiteReplacesExits() {
+        cache.refresh();
+        site = SITE_V2;
+        etag = "\"v2\"";
+        cache.refresh();
+        assertEquals("\"v1\"", ifNoneMatch.get(1));
+        assertEquals(2, cache.getVersion());
+        assertEquals(Collections.singleton("e"), cache.getExits().keySet());
+
+        cache.refresh();
+        assertEquals("\"v2\"", ifNoneMatch.get(2));
+        assertEquals(2, cache.getVersion());
+    }
+
+    @Test
+    public void failureKeepsWhatWeHad() {
+        cache.refresh();
+        Map<String, ExitCache.Exit> exits = cache.getExits();
+        status = 500;
+        cache.refresh();
+        assertEquals(1, cache.getVersion());
+        assertSame(exits, cache.getExits());
+
+        server.stop(0);
+        cache.refresh();
+        assertEquals(1, cache.getVersion());
+        assertSame(exits, cache.getExits());
+    }
+
+    @Test
+    public void exitsUnknownUntilFirstFetch() {
+        assertNull(cache.getExits());
+        assertEquals(0, cache.getVersion());
+    }
+
+    @Test
+    public void siteWithNoExitsHasNone() {
+        site = "{\"exits\":{}}";
+        cache.refresh();
+        assertNotNull("fetched, so known", cache.getExits());
+        assertTrue(cache.getExits().isEmpty());
+    }
+
+    @Test
+    public void failingMapIsNotAskedOnEveryRead() throws Exception {
+        status = 500;
+        // long enough since startup that what we have (nothing) counts as stale
+        now.set(100000);
+        cache.refresh();
+        assertEquals(1, ifNoneMatch.size());
+        for (int i = 0; i < 100; i++) {
+            cache.getExits();
+        }
+        Thread.sleep(100);
+        assertEquals("asked again before the retry was due", 1, ifNoneMatch.size());
+
+        // the first retry is due a second on, the next two seconds after that
+        now.addAndGet(ExitCache.FIRST_RETRY_MILLIS);
+        cache.getExits();
+        waitForRequests(2);
+        now.addAndGet(ExitCache.FIRST_RETRY_MILLIS);
+        cache.getExits();
+        Thread.sleep(100);
+        assertEquals(2, ifNoneMatch.size());
+        now.addAndGet(ExitCache.FIRST_RETRY_MILLIS);
+        cache.getExits();
+        waitForRequests(3);
+
+        // once the map is back, reads leave it alone until the exits are stale
+        status = 200;
+        now.addAndGet(4 * ExitCache.FIRST_RETRY_MILLIS);
+        cache.getExits();
+        waitForRequests(4);
+        for (long until = System.currentTimeMillis() + 1000; cache.getVersion() == 0
+                && System.currentTimeMillis() < until;) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, cache.getVersion());
+        cache.getExits();
+        Thread.sleep(100);
+        assertEquals(4, ifNoneMatch.size());
+    }
+
+    // until the map has been asked, and the cache has had a moment to take in the answer
+    private void waitForRequests(int count) throws InterruptedException {
+        for (long until = System.currentTimeMillis() + 1000; ifNoneMatch.size() < count
+                && System.currentTimeMillis() < until;) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, ifNoneMatch.size());
+        Thread.sleep(100);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+        ifNoneMatch.add(condition);
+        if (status != 200) {
+            exchange.sendResponseHeaders(status, -1);
+        } else if (etag.equals(condition)) {
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            byte[] body = site.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+}
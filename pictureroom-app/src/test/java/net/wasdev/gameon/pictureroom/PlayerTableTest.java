@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PlayerTableTest {
+
+    @Test
+    public void handlesAreReusedOnceGivenBack() {
+        PlayerTable table = new PlayerTable(4);
+        int a = table.add("a", "Anna");
+        int b = table.add("b", "Ben");
+        table.remove(a);
+        assertEquals(-1, table.find("a"));
+        assertEquals(a, table.add("c", "Cara"));
+        assertEquals(b, table.find("b"));
+        assertEquals(2, table.capacity());
+        assertEquals("player,c,", table.prefix(a));
+        assertEquals("playerLocation,c,", table.locationPrefix(a));
+        assertEquals("c", table.userId(a));
+    }
+
+    @Test
+    public void agreesWithAMapThroughRandomChurn() {
+        PlayerTable table = new PlayerTable(4);
+        Map<String, String> expected = new HashMap<>();
+        List<String> ids = new ArrayList<>();
+        Random random = new Random(35);
+        for (int i = 0; i < 200000; i++) {
+            // a small pool of ids, so the same players come and go many times
+            String id = "player" + random.nextInt(3000);
+            int h = table.find(id);
+            assertEquals(expected.containsKey(id), h >= 0);
+            if (h >= 0) {
+                assertEquals(expected.get(id), table.username(h));
+                assertEquals(id, table.userId(h));
+                table.remove(h);
+                expected.remove(id);
+            } else {
+                String username = "user" + i;
+                h = table.add(id, username);
+                assertEquals("player," + id + ",", table.prefix(h));
+                assertEquals("playerLocation," + id + ",", table.locationPrefix(h));
+                expected.put(id, username);
+                ids.add(id);
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (String id : ids) {
+            int h = table.find(id);
+            assertEquals(expected.containsKey(id), h >= 0);
+            if (h >= 0) {
+                assertEquals(expected.get(id), table.username(h));
+            }
+        }
+        // handles stay dense however much churn there has been
+        assertTrue(table.capacity() <= 3000);
+    }
+
+    @Test
+    public void userIdsWithTheSameHashAreKeptApart() {
+        PlayerTable table = new PlayerTable(4);
+        // "Aa" and "BB" share a String hash code
+        int aa = table.add("Aa", "first");
+        int bb = table.add("BB", "second");
+        assertEquals(aa, table.find("Aa"));
+        assertEquals(bb, table.find("BB"));
+        table.remove(aa);
+        assertEquals(-1, table.find("Aa"));
+        assertEquals(bb, table.find("BB"));
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import javax.websocket.Session;
+
+/**
+ * Compares the heap the room keeps per player against the baseline room.
+ *
+ * The baseline kept a synchronized set of userIds, and put the username and userId in each
+ * session's user properties. The room now keeps players in {@link PresenceRoster}, which
+ * holds both routing prefixes and the owning session, and puts just the routing prefix in
+ * the user properties. Both layouts are measured with a user properties map per player, as
+ * the container makes one for every session whatever we put in it. The userId and username
+ * each layout keeps are copies, as they would be when parsed from a hello, and are counted:
+ * the baseline keeps the userId, the roster keeps only the prefixes built from it.
+ *
+ * Run with <code>gradle presenceFootprint [-Pplayers=n]</code>. Heap is measured as the
+ * growth in used memory after a full collection, over several copies, so treat the
+ * figures as estimates.
+ */
+public class PresenceFootprint {
+
+    private static final int COPIES = 5;
+
+    public static void main(String[] args) {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        String[] ids = new String[players];
+        String[] names = new String[players];
+        Session[] sessions = new Session[players];
+        for (int i = 0; i < players; i++) {
+            ids[i] = "twitter:" + (100000000L + i);
+            names[i] = "player" + i;
+            // only ever compared by identity
+            sessions[i] = (Session) Proxy.newProxyInstance(PresenceFootprint.class.getClassLoader(),
+                    new Class<?>[] { Session.class }, (p, method, a) -> null);
+        }
+
+        long baseline = measure(() -> {
+            Set<String> playersInRoom = Collections.synchronizedSet(new HashSet<String>());
+            List<Map<String, Object>> userProperties = new ArrayList<>(players);
+            for (int i = 0; i < players; i++) {
+                Map<String, Object> properties = new HashMap<>();
+                String id = copy(ids[i]);
+                properties.put("username", copy(names[i]));
+                properties.put("userId", id);
+                userProperties.add(properties);
+                playersInRoom.add(id);
+            }
+            return new Object[] { playersInRoom, userProperties };
+        });
+        long room = measure(() -> {
+            // a long window, so nothing is published behind our back
+            PresenceRoster presence = new PresenceRoster(() -> 3600000, message -> {
+            });
+            List<Map<String, Object>> userProperties = new ArrayList<>(players);
+            for (int i = 0; i < players; i++) {
+                Map<String, Object> properties = new HashMap<>();
+                presence.join(copy(ids[i]), copy(names[i]), sessions[i]);
+                properties.put("pictureroom.player", presence.routingPrefix(ids[i]));
+                userProperties.add(properties);
+            }
+            presence.publish();
+            presence.shutdown();
+            return new Object[] { presence, userProperties };
+        });
+
+        System.out.println(players + " players, not counting the sessions themselves");
+        print("baseline", baseline, players);
+        print("room", room, players);
+    }
+
+    // a string of its own, as parsing makes, rather than one sharing the original's characters
+    private static String copy(String s) {
+        return new String(s.toCharArray());
+    }
+
+    private static void print(String layout, long bytes, int players) {
+        System.out.printf("  %-10s %,12d bytes (%d per player)%n", layout + ":", bytes, bytes / players);
+    }
+
+    // average heap retained by what the supplier builds
+    private static long measure(Supplier<Object> build) {
+        // once to load the classes involved, and to warm up
+        build.get();
+        List<Object> kept = new ArrayList<>();
+        long before = usedAfterGc();
+        for (int i = 0; i < COPIES; i++) {
+            kept.add(build.get());
+        }
+        long after = usedAfterGc();
+        if (kept.size() != COPIES) {
+            throw new IllegalStateException();
+        }
+        return (after - before) / COPIES;
+    }
+
+    private static long usedAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
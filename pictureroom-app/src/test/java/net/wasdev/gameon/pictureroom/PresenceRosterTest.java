@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import javax.websocket.Session;
+
+import org.junit.After;
+import org.junit.Test;
+
+import net.wasdev.gameon.protocol.FakeSession;
+
+public class PresenceRosterTest {
+
+    private final List<String> broadcasts = new ArrayList<>();
+    // a long window, so only the test publishes
+    private final PresenceRoster roster = new PresenceRoster(() -> 3600000, this::broadcast);
+    private final Session first = new FakeSession("first").session();
+    private final Session second = new FakeSession("second").session();
+
+    @After
+    public void shutdown() {
+        roster.shutdown();
+    }
+
+    @Test
+    public void diffsFollowTheFullView() {
+        roster.join("u1", "Una", first);
+        roster.publish();
+        assertEquals(1, broadcasts.size());
+        assertEquals(1, parse(broadcasts.get(0).substring("player,*,".length())).getInt("version"));
+
+        List<String> sent = new ArrayList<>();
+        roster.sendFullRoster("player,u2,", message -> {
+            assertTrue(Thread.holdsLock(roster));
+            sent.add(message);
+        });
+        JsonObject full = parse(sent.get(0).substring("player,u2,".length()));
+        assertTrue(full.getBoolean("full"));
+        assertEquals(1, full.getInt("version"));
+        assertEquals("u1", full.getJsonArray("players").getJsonObject(0).getString("userId"));
+    }
+
+    @Test
+    public void rejoiningIsNotNewButStillGetsTheRoster() {
+        assertTrue(roster.join("u1", "Una", first));
+        // a second connection for the same player, taking over from the first
+        assertFalse(roster.join("u1", "Una", second));
+        roster.publish();
+        List<String> sent = new ArrayList<>();
+        roster.sendFullRoster("player,u1,", sent::add);
+        assertEquals(1, sent.size());
+        assertEquals(1, parse(sent.get(0).substring("player,u1,".length())).getJsonArray("players").size());
+    }
+
+    @Test
+    public void onlyTheOwningConnectionCanLeave() {
+        roster.join("u1", "Una", first);
+        roster.join("u1", "Una", second);
+        // the old connection going doesn't take the player out of the room
+        assertFalse(roster.leave("u1", first));
+        assertEquals(1, roster.size());
+        assertTrue(roster.leave("u1", second));
+        assertEquals(0, roster.size());
+        assertFalse(roster.leave("u1", second));
+    }
+
+    @Test
+    public void prefixesComeFromTheTable() {
+        roster.join("u1", "Una", first);
+        assertSame(roster.routingPrefix("u1"), roster.routingPrefix("u1"));
+        assertEquals("player,u1,", roster.routingPrefix("u1"));
+        assertEquals("playerLocation,u1,", roster.locationPrefix("u1"));
+        // and are still right for someone who isn't here
+        assertEquals("playerLocation,u2,", roster.locationPrefix("u2"));
+    }
+
+    private void broadcast(String message) {
+        // queued while the roster is locked, so no full view can be handed over in between
+        assertTrue(Thread.holdsLock(roster));
+        broadcasts.add(message);
+    }
+
+    private static JsonObject parse(String json) {
+        return Json.createReader(new StringReader(json)).readObject();
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.Session;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.protocol.FakeSession;
+
+public class SessionLivenessTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final TimerWheel wheel = new TimerWheel(100, 64, now::get);
+    private final List<List<Session>> reaped = new ArrayList<>();
+    // ping every second, reap after three quiet seconds
+    private final SessionLiveness liveness = new SessionLiveness(wheel, now::get, () -> 1000, () -> 3000,
+            reaped::add);
+
+    @Test
+    public void pingsWhileQuietThenReaps() {
+        FakeSession quiet = new FakeSession("quiet");
+        liveness.track(quiet.session());
+        advanceTo(1000);
+        advanceTo(2000);
+        advanceTo(3000);
+        assertEquals(3, quiet.getPings());
+        assertTrue(reaped.isEmpty());
+        advanceTo(4000);
+        assertEquals(Arrays.asList(Arrays.asList(quiet.session())), reaped);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void sessionHeardFromIsKept() {
+        FakeSession chatty = new FakeSession("chatty");
+        liveness.track(chatty.session());
+        for (long t = 1000; t <= 10000; t += 1000) {
+            advanceTo(t);
+            liveness.seen(chatty.session());
+        }
+        assertTrue(reaped.isEmpty());
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void failedPingStillChecksAgain() {
+        FakeSession broken = new FakeSession("broken").pingFailure(new IllegalStateException("closing"));
+        liveness.track(broken.session());
+        advanceTo(1000);
+        // the ping threw, the session must still be on the wheel to be reaped later
+        assertEquals(1, wheel.size());
+        advanceTo(2000);
+        advanceTo(3000);
+        advanceTo(4000);
+        assertEquals(Arrays.asList(Arrays.asList(broken.session())), reaped);
+    }
+
+    @Test
+    public void closedSessionIsReapedAtItsNextCheck() {
+        FakeSession closed = new FakeSession("closed");
+        liveness.track(closed.session());
+        closed.close();
+        advanceTo(1000);
+        assertEquals(Arrays.asList(Arrays.asList(closed.session())), reaped);
+    }
+
+    @Test
+    public void staleSessionsAreReapedTogether() {
+        FakeSession first = new FakeSession("first");
+        FakeSession second = new FakeSession("second");
+        liveness.track(first.session());
+        liveness.track(second.session());
+        first.close();
+        second.close();
+        advanceTo(1000);
+        assertEquals(1, reaped.size());
+        assertEquals(2, reaped.get(0).size());
+    }
+
+    @Test
+    public void untrackedSessionIsLeftAlone() {
+        FakeSession gone = new FakeSession("gone");
+        liveness.track(gone.session());
+        liveness.untrack(gone.session());
+        advanceTo(5000);
+        assertEquals(0, gone.getPings());
+        assertTrue(reaped.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    private void advanceTo(long millis) {
+        now.set(millis);
+        liveness.tick();
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.pictureroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+    // 8 buckets of 10ms, one turn of the wheel is 80ms
+    private final TimerWheel wheel = new TimerWheel(10, 8, now::get);
+    private final AtomicInteger fired = new AtomicInteger();
+
+    @Test
+    public void firesOnceDueAndNotBefore() {
+        wheel.schedule(fired::incrementAndGet, 25);
+        advanceTo(1020);
+        assertEquals(0, fired.get());
+        advanceTo(1030);
+        assertEquals(1, fired.get());
+        assertEquals(0, wheel.size());
+        advanceTo(1100);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void waitsOutWholeTurnsOfTheWheel() {
+        wheel.schedule(fired::incrementAndGet, 200);
+        advanceTo(1080);
+        advanceTo(1160);
+        advanceTo(1190);
+        assertEquals(0, fired.get());
+        advanceTo(1200);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void cancelledTimerNeverFires() {
+        TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 30);
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        advanceTo(1100);
+        assertEquals(0, fired.get());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void catchesUpOnMissedTicks() {
+        for (int delay = 10; delay <= 70; delay += 10) {
+            wheel.schedule(fired::incrementAndGet, delay);
+        }
+        now.set(1070);
+        assertEquals(7, wheel.advance());
+    }
+
+    @Test
+    public void taskCanScheduleItsSuccessor() {
+        wheel.schedule(() -> wheel.schedule(fired::incrementAndGet, 10), 10);
+        advanceTo(1010);
+        assertEquals(0, fired.get());
+        assertEquals(1, wheel.size());
+        advanceTo(1020);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheOthers() {
+        wheel.schedule(() -> {
+            throw new IllegalStateException("broken");
+        }, 10);
+        wheel.schedule(fired::incrementAndGet, 10);
+        advanceTo(1010);
+        assertEquals(1, fired.get());
+    }
+
+    private void advanceTo(long millis) {
+        now.set(millis);
+        wheel.advance();
+    }
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * A websocket session for tests, recording what is sent to it, and taking as long over
+ * each send as it is told to. Async sends are made on a thread of the fake's own, as the
+ * container would, unless it is told to complete them inline.
+ */
+public class FakeSession {
+
+    /** Something the fake does in place of sending, may throw. */
+    public interface Sender {
+        void sendText(String text) throws IOException;
+    }
+
+    // the container's own threads, which complete async sends
+    private static final ExecutorService container = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fake-container");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+    private final StringBuilder partial = new StringBuilder();
+    private final String id;
+    private volatile Sender sender = text -> {
+    };
+    private volatile long sendMillis;
+    private volatile boolean open = true;
+    private volatile boolean inline = false;
+    private volatile boolean stalled = false;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    // async sends a stalled peer is sitting on, they fail when the session closes
+    private final List<SendHandler> held = new CopyOnWriteArrayList<>();
+    private volatile CloseReason closeReason;
+    private volatile RuntimeException pingFailure;
+    private final AtomicInteger pings = new AtomicInteger();
+    private final Session session;
+
+    public FakeSession(String id) {
+        this.id = id;
+        RemoteEndpoint.Basic basic = proxy(RemoteEndpoint.Basic.class, (p, method, args) -> {
+            if ("sendText".equals(method.getName())) {
+                if (stalled) {
+                    // a blocking send to a peer that has stopped reading is stuck until the close
+                    closed.await();
+                    throw new IOException("closed while sending");
+                }
+                send((String) args[0], args.length == 1 || Boolean.TRUE.equals(args[1]));
+                return null;
+            }
+            return defaultValue(method);
+        });
+        RemoteEndpoint.Async async = proxy(RemoteEndpoint.Async.class, (p, method, args) -> {
+            if ("sendText".equals(method.getName()) && args.length == 2) {
+                SendHandler handler = (SendHandler) args[1];
+                if (stalled) {
+                    held.add(handler);
+                    if (!open) {
+                        failHeld();
+                    }
+                } else if (inline) {
+                    handler.onResult(sendAsync((String) args[0]));
+                } else {
+                    container.execute(() -> handler.onResult(sendAsync((String) args[0])));
+                }
+                return null;
+            }
+            if ("sendPing".equals(method.getName())) {
+                if (pingFailure != null) {
+                    throw pingFailure;
+                }
+                pings.incrementAndGet();
+                return null;
+            }
+            return defaultValue(method);
+        });
+        session = proxy(Session.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getBasicRemote":
+                    return basic;
+                case "getAsyncRemote":
+                    return async;
+                case "getUserProperties":
+                    return userProperties;
+                case "isOpen":
+                    return open;
+                case "getId":
+                    return id;
+                case "close":
+                    closeReason = args != null && args.length > 0 ? (CloseReason) args[0] : null;
+                    close();
+                    return null;
+                case "equals":
+                    return p == args[0];
+                case "hashCode":
+                    return System.identityHashCode(p);
+                case "toString":
+                    return "FakeSession[" + id + "]";
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    public Session session() {
+        return session;
+    }
+
+    /** Each send takes this long, as if the client were slow to read. */
+    public FakeSession sendMillis(long millis) {
+        this.sendMillis = millis;
+        return this;
+    }
+
+    /** Complete async sends on the thread that made them, as a container may if it can. */
+    public FakeSession inline() {
+        this.inline = true;
+        return this;
+    }
+
+    /**
+     * The peer has stopped reading, as a half-open connection does: async sends never
+     * complete and blocking sends never return, until the session is closed.
+     */
+    public FakeSession stalled() {
+        this.stalled = true;
+        return this;
+    }
+
+    /** Run this as each part is sent, before it is recorded. */
+    public FakeSession sender(Sender sender) {
+        this.sender = sender;
+        return this;
+    }
+
+    /** Pings fail, as they do once the container has given up on a connection. */
+    public FakeSession pingFailure(RuntimeException failure) {
+        this.pingFailure = failure;
+        return this;
+    }
+
+    /** @return how many pings have been sent */
+    public int getPings() {
+        return pings.get();
+    }
+
+    /** @return the next whole message sent, waiting up to the timeout for it, or null */
+    public String next(long timeoutMillis) throws InterruptedException {
+        return sent.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public CloseReason getCloseReason() {
+        return closeReason;
+    }
+
+    public void close() {
+        open = false;
+        closed.countDown();
+        failHeld();
+    }
+
+    private void send(String text, boolean last) throws Exception {
+        if (sendMillis > 0) {
+            Thread.sleep(sendMillis);
+        }
+        sender.sendText(text);
+        // parts are put back together into the message they belong to
+        synchronized (partial) {
+            partial.append(text);
+            if (last) {
+                sent.add(partial.toString());
+                partial.setLength(0);
+            }
+        }
+    }
+
+    private SendResult sendAsync(String text) {
+        try {
+            send(text, true);
+            return new SendResult();
+        } catch (Exception e) {
+            return new SendResult(e);
+        }
+    }
+
+    private void failHeld() {
+        for (SendHandler handler : held) {
+            if (held.remove(handler)) {
+                handler.onResult(new SendResult(new IOException("closed while sending")));
+            }
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(FakeSession.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.Test;
+
+public class JsonChunksTest {
+
+    // quotes, control characters and a surrogate pair, in among plain text
+    private static final String TEXT = "A \"quoted\" \\ path\n\ttabbed \u0001 and a \uD83D\uDDBC picture, twice: \uD83D\uDDBC";
+
+    @Test
+    public void chunksMakeTheSameJsonAtAnySize() {
+        String expected = Json.createObjectBuilder().add("text", TEXT).build().toString();
+        for (int size = 1; size <= TEXT.length() + 8; size++) {
+            String json = readAll(new JsonChunks("{\"text\":", () -> new StringReader(TEXT), "}", size));
+            assertEquals("chunk size " + size, expected, json);
+        }
+    }
+
+    @Test
+    public void surrogatePairsAreNotSplit() {
+        JsonChunks chunks = new JsonChunks("", () -> new StringReader(TEXT), "", 1);
+        while (chunks.hasNext()) {
+            String chunk = chunks.next();
+            assertFalse(chunk, Character.isHighSurrogate(chunk.charAt(chunk.length() - 1)));
+        }
+    }
+
+    @Test
+    public void failedReadEndsTheMessage() {
+        JsonChunks.Source failing = () -> new Reader() {
+            private boolean first = true;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                if (!first) {
+                    throw new IOException("gone");
+                }
+                first = false;
+                buffer[offset] = 'x';
+                return 1;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        String json = readAll(new JsonChunks("{\"text\":", failing, "}", 4));
+        JsonObject parsed = Json.createReader(new StringReader(json)).readObject();
+        assertEquals("x", parsed.getString("text"));
+
+        String unopened = readAll(new JsonChunks("{\"text\":", () -> {
+            throw new IOException("missing");
+        }, "}"));
+        assertEquals("{\"text\":\"\"}", unopened);
+    }
+
+    @Test
+    public void sourceIsOpenedLateAndClosed() {
+        AtomicBoolean opened = new AtomicBoolean();
+        AtomicBoolean closed = new AtomicBoolean();
+        JsonChunks.Source source = () -> {
+            opened.set(true);
+            return new StringReader(TEXT) {
+                @Override
+                public void close() {
+                    closed.set(true);
+                    super.close();
+                }
+            };
+        };
+        JsonChunks chunks = new JsonChunks("", source, "", 4);
+        assertFalse(opened.get());
+        chunks.next();
+        assertTrue(opened.get());
+        // given up part way, as when a connection fails
+        chunks.close();
+        assertTrue(closed.get());
+
+        closed.set(false);
+        readAll(new JsonChunks("", source, "", 4));
+        assertTrue("closed once read through", closed.get());
+    }
+
+    private static String readAll(JsonChunks chunks) {
+        StringBuilder json = new StringBuilder();
+        while (chunks.hasNext()) {
+            json.append(chunks.next());
+        }
+        return json.toString();
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.CloseReason.CloseCodes;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+    private static final String CHAT = "player,*,{\"type\":\"chat\",\"username\":\"flood\",\"content\":\"hi\"}";
+    private static final String GO = "playerLocation,player1,{\"type\":\"exit\",\"exitId\":\"N\"}";
+
+    @After
+    public void resetLimits() {
+        OutboundQueue.setLimit(() -> 256);
+        OutboundQueue.setSendTimeout(() -> 10000);
+        OutboundQueue.setReplyListener(received -> { });
+    }
+
+    @Test
+    public void goReplyOvertakesChatFlood() throws Exception {
+        FakeSession slow = new FakeSession("slow").sendMillis(2);
+        int flood = 200;
+        for (int i = 0; i < flood; i++) {
+            EventBuilder.send(slow.session(), CHAT);
+        }
+        long queuedAt = System.nanoTime();
+        EventBuilder.send(slow.session(), GO);
+
+        // the flood alone takes 400ms to go out, the reply should be out well before that
+        int position = 0;
+        for (String sent = slow.next(5000); !GO.equals(sent); sent = slow.next(5000)) {
+            assertNotNull("the /go reply was never sent", sent);
+            position++;
+        }
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt);
+        // behind at most the few chat frames that went out while the flood was being queued
+        assertTrue("sent after " + position + " chat frames", position < 16);
+        assertTrue("waited " + waitedMillis + "ms", waitedMillis < 200);
+        OutboundQueue.forget(slow.session());
+    }
+
+    @Test
+    public void repliesAreReportedOnceWritten() throws Exception {
+        List<Long> replies = new ArrayList<>();
+        CountDownLatch written = new CountDownLatch(1);
+        OutboundQueue.setReplyListener(received -> {
+            replies.add(received);
+            written.countDown();
+        });
+        FakeSession player = new FakeSession("player").sendMillis(20);
+        // not a reply to anything, so not reported
+        EventBuilder.send(player.session(), CHAT);
+        OutboundQueue.handling(42);
+        try {
+            EventBuilder.send(player.session(), GO);
+        } finally {
+            OutboundQueue.handled();
+        }
+        assertTrue(written.await(1, TimeUnit.SECONDS));
+        assertEquals(CHAT, player.next(1000));
+        assertEquals(GO, player.next(1000));
+        assertEquals(1, replies.size());
+        assertEquals(42L, (long) replies.get(0));
+        OutboundQueue.forget(player.session());
+    }
+
+    @Test
+    public void broadcasterIsNotHeldUpBySlowSession() throws Exception {
+        FakeSession slow = new FakeSession("slow").sendMillis(50);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            EventBuilder.send(slow.session(), CHAT, 2);
+        }
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // sending on this thread would take a second
+        assertTrue("took " + tookMillis + "ms", tookMillis < 500);
+        slow.close();
+    }
+
+    @Test
+    public void stalledPeersDoNotHoldUpOthers() throws Exception {
+        // more stalled peers than there are processors, each with frames waiting behind a stuck send
+        List<FakeSession> stalled = new ArrayList<>();
+        for (int i = 0; i < 4 * Runtime.getRuntime().availableProcessors() + 8; i++) {
+            FakeSession peer = new FakeSession("stalled" + i).stalled();
+            stalled.add(peer);
+            for (int j = 0; j < 5; j++) {
+                EventBuilder.send(peer.session(), CHAT);
+            }
+            EventBuilder.send(peer.session(), GO);
+        }
+        FakeSession healthy = new FakeSession("healthy");
+        long queuedAt = System.nanoTime();
+        EventBuilder.send(healthy.session(), GO);
+        assertEquals(GO, healthy.next(1000));
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt);
+        assertTrue("waited " + waitedMillis + "ms", waitedMillis < 200);
+
+        // when the container gives up on them, what they had queued goes too
+        for (FakeSession peer : stalled) {
+            peer.close();
+            waitForDepth(peer, 0);
+        }
+        OutboundQueue.forget(healthy.session());
+    }
+
+    @Test
+    public void stalledStreamIsTimedOut() throws Exception {
+        OutboundQueue.setSendTimeout(() -> 100);
+        FakeSession stalled = new FakeSession("stalled").stalled();
+        EventBuilder.streamedPlayerEvent(stalled.session(), "player1", "a long description");
+        for (long until = System.currentTimeMillis() + 2000; stalled.isOpen() && System.currentTimeMillis() < until;) {
+            Thread.sleep(5);
+        }
+        assertFalse("the streamer is still stuck on the session", stalled.isOpen());
+        assertEquals(CloseCodes.UNEXPECTED_CONDITION, stalled.getCloseReason().getCloseCode());
+
+        // and the streamer is free again for everyone else
+        FakeSession healthy = new FakeSession("healthy");
+        EventBuilder.streamedPlayerEvent(healthy.session(), "player2", "a short description");
+        assertNotNull(healthy.next(1000));
+        OutboundQueue.forget(healthy.session());
+    }
+
+    @Test
+    public void lanesKeepTheirOrder() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeSession session = new FakeSession("ordered").sender(text -> await(release));
+        EventBuilder.send(session.session(), "player,*,first");
+        // the sender is now stuck on the first frame, queue behind it
+        waitForDepth(session, 0);
+        EventBuilder.send(session.session(), "player,*,a");
+        EventBuilder.send(session.session(), "player,player1,b");
+        EventBuilder.send(session.session(), "player,*,c");
+        EventBuilder.send(session.session(), "ack,{}");
+        release.countDown();
+
+        assertEquals("player,*,first", session.next(1000));
+        assertEquals("ack,{}", session.next(1000));
+        assertEquals("player,player1,b", session.next(1000));
+        assertEquals("player,*,a", session.next(1000));
+        assertEquals("player,*,c", session.next(1000));
+        OutboundQueue.forget(session.session());
+    }
+
+    @Test
+    public void fullLaneDropsOldest() throws Exception {
+        OutboundQueue.setLimit(() -> 4);
+        CountDownLatch release = new CountDownLatch(1);
+        FakeSession session = new FakeSession("full").sender(text -> await(release));
+        EventBuilder.send(session.session(), "player,*,first");
+        waitForDepth(session, 0);
+        long dropped = OutboundQueue.getDropped();
+        for (int i = 0; i < 10; i++) {
+            EventBuilder.send(session.session(), "player,*," + i);
+        }
+        EventBuilder.send(session.session(), "ack,{}");
+        assertEquals(6, OutboundQueue.getDropped() - dropped);
+        assertEquals(5, OutboundQueue.depth(session.session()));
+        release.countDown();
+
+        assertEquals("player,*,first", session.next(1000));
+        assertEquals("ack,{}", session.next(1000));
+        for (int i = 6; i < 10; i++) {
+            assertEquals("player,*," + i, session.next(1000));
+        }
+        OutboundQueue.forget(session.session());
+    }
+
+    @Test
+    public void failedConnectionIsClosed() throws Exception {
+        FakeSession broken = new FakeSession("broken").sender(text -> {
+            throw new IOException("connection reset");
+        });
+        EventBuilder.send(broken.session(), CHAT);
+        EventBuilder.send(broken.session(), CHAT);
+        // a frame queued as the connection failed is thrown away by the next sender to look
+        for (long until = System.currentTimeMillis() + 1000; (broken.isOpen()
+                || OutboundQueue.depth(broken.session()) > 0) && System.currentTimeMillis() < until;) {
+            Thread.sleep(5);
+        }
+        assertFalse(broken.isOpen());
+        assertEquals(CloseCodes.UNEXPECTED_CONDITION, broken.getCloseReason().getCloseCode());
+        assertEquals(0, OutboundQueue.depth(broken.session()));
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // until a sender has taken everything queued so far
+    private static void waitForDepth(FakeSession session, int depth) throws InterruptedException {
+        for (long until = System.currentTimeMillis() + 1000; OutboundQueue.depth(session.session()) != depth
+                && System.currentTimeMillis() < until;) {
+            Thread.sleep(1);
+        }
+        assertEquals(depth, OutboundQueue.depth(session.session()));
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.protocol;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Reads a flight recording made with the room's events (see {@link RoomEvents}) and prints
+ * how long each stage took, overall and per command verb, so a latency spike can be pinned
+ * on parsing, running the command, or sending.
+ *
+ * Run offline, e.g. <code>gradle analyzeRecording -Precording=room.jfr</code>
+ */
+public class RecordingAnalyzer {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: RecordingAnalyzer <recording.jfr>");
+            return;
+        }
+        Path recording = Paths.get(args[0]);
+
+        // stage -> breakdown -> durations in microseconds
+        Map<String, Map<String, List<Long>>> stages = new TreeMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+            String name = event.getEventType().getName();
+            if (!name.startsWith(RoomEvents.PREFIX)) {
+                continue;
+            }
+            String stage = name.substring(RoomEvents.PREFIX.length());
+            Map<String, List<Long>> breakdown = stages.computeIfAbsent(stage, k -> new TreeMap<>());
+            long micros = event.getDuration().toNanos() / 1000;
+            breakdown.computeIfAbsent("(all)", k -> new ArrayList<>()).add(micros);
+            String key = breakdownKey(event);
+            if (key != null) {
+                breakdown.computeIfAbsent(key, k -> new ArrayList<>()).add(micros);
+            }
+        }
+
+        if (stages.isEmpty()) {
+            System.out.println("No picture room events found in " + recording);
+            return;
+        }
+        System.out.println(String.format("%-12s %-24s %8s %10s %10s %10s %10s %10s",
+                "stage", "breakdown", "count", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "max(us)"));
+        for (Map.Entry<String, Map<String, List<Long>>> stage : stages.entrySet()) {
+            for (Map.Entry<String, List<Long>> row : stage.getValue().entrySet()) {
+                List<Long> durations = row.getValue();
+                Collections.sort(durations);
+                long total = 0;
+                for (long d : durations) {
+                    total += d;
+                }
+                System.out.println(String.format("%-12s %-24s %8d %10d %10d %10d %10d %10d",
+                        stage.getKey(), row.getKey(), durations.size(), total / durations.size(),
+                        percentile(durations, 50), percentile(durations, 90), percentile(durations, 99),
+                        durations.get(durations.size() - 1)));
+            }
+        }
+    }
+
+    // commands are broken down by verb, sends by how widely they fan out, the rest by routing.
+    private static String breakdownKey(RecordedEvent event) {
+        if (event.hasField("verb")) {
+            return event.getString("verb");
+        }
+        if (event.hasField("fanOut")) {
+            int fanOut = event.getInt("fanOut");
+            return fanOut <= 1 ? "fanOut=1" : "fanOut<=" + Integer.highestOneBit(fanOut - 1) * 2;
+        }
+        if (event.hasField("routing")) {
+            return event.getString("routing");
+        }
+        return null;
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}